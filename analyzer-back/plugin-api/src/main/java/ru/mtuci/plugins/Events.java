@@ -0,0 +1,119 @@
+package ru.mtuci.plugins;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * События Java Flight Recorder сервера и плагинов. Пока запись не включена, событие почти ничего не стоит, поэтому
+ * они создаются на каждом запросе. В каждом событии есть id запроса клиента: по нему события клиента, сервера,
+ * вычислителей и плагинов одной проверки связываются между процессами.
+ * <p>
+ * На время вызова плагина сервер выставляет его потоку id запроса, плагин получает его через {@link #requestId()}.
+ * Если одну проверку ждут несколько запросов, плагины выполняются с id того, кто ее начал.
+ */
+public final class Events {
+    private static final String CATEGORY = "SafeEC";
+
+    private static final ThreadLocal<String> requestId = new ThreadLocal<>();
+
+    private Events() {
+    }
+
+    /**
+     * id запроса, который проверяет текущий поток, или null вне проверки
+     */
+    public static String requestId() {
+        return requestId.get();
+    }
+
+    /**
+     * Выставляет потоку id запроса, null снимает его. Возвращает id, выставленный до вызова
+     */
+    public static String activate(String id) {
+        String previous = requestId.get();
+        if (id == null)
+            requestId.remove();
+        else
+            requestId.set(id);
+        return previous;
+    }
+
+    @Name("ru.mtuci.FrameDecode")
+    @Label("Frame Decode")
+    @Category({CATEGORY, "Server"})
+    public static class FrameDecode extends Event {
+        @Label("Request Id")
+        public String requestId;
+        @Label("Codec")
+        public String codec;
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("ru.mtuci.FrameEncode")
+    @Label("Frame Encode")
+    @Category({CATEGORY, "Server"})
+    public static class FrameEncode extends Event {
+        @Label("Request Id")
+        public String requestId;
+        @Label("Codec")
+        public String codec;
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("ru.mtuci.PluginInvocation")
+    @Label("Plugin Invocation")
+    @Category({CATEGORY, "Plugins"})
+    public static class PluginInvocation extends Event {
+        @Label("Request Id")
+        public String requestId;
+        @Label("Plugin")
+        public String plugin;
+        @Label("Priority")
+        public String priority;
+        /**
+         * Validated, Undefined, Vulnerable, TechError или Failed, если плагин бросил исключение
+         */
+        @Label("Result")
+        public String result;
+    }
+
+    /**
+     * Поиск в кэше результатов проверок плагина
+     */
+    @Name("ru.mtuci.CacheLookup")
+    @Label("Cache Lookup")
+    @Category({CATEGORY, "Plugins"})
+    public static class CacheLookup extends Event {
+        @Label("Request Id")
+        public String requestId;
+        @Label("Cache")
+        public String cache;
+        @Label("Hit")
+        public boolean hit;
+    }
+
+    /**
+     * Разложение числа на множители
+     */
+    @Name("ru.mtuci.Factor")
+    @Label("Factor")
+    @Category({CATEGORY, "Plugins"})
+    public static class Factor extends Event {
+        @Label("Request Id")
+        public String requestId;
+        /**
+         * cache - из памяти, disk - с диска, process - посчитано отдельным процессом
+         */
+        @Label("Source")
+        public String source;
+        @Label("Bits")
+        public int bits;
+    }
+}
@@ -0,0 +1,157 @@
+package ru.mtuci.plugins;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики и гистограммы времени, общие для сервера и плагинов. Плагины загружаются с сервером в качестве
+ * родительского загрузчика, поэтому пишут в тот же реестр, а сервер отдает его командой STATS.
+ * <p>
+ * Запись не требует блокировок, поэтому вызывать можно на каждом запросе. Метрику по имени лучше получить
+ * один раз и сохранить, а не искать при каждой записи.
+ */
+public final class Metrics {
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Снимок всех метрик: {"counters": {имя: значение}, "histograms": {имя: {count, sumMs, meanMs, p50Ms, ...}}}.
+     * Значения - Long, Double или вложенные Map, имена отсортированы.
+     */
+    public static Map<String, Object> snapshot() {
+        var counterValues = new TreeMap<String, Object>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.get()));
+        var histogramValues = new TreeMap<String, Object>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+
+        var result = new TreeMap<String, Object>();
+        result.put("counters", counterValues);
+        result.put("histograms", histogramValues);
+        return result;
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Распределение длительностей в наносекундах. Каждая степень двойки делится на 4 корзины, поэтому процентили
+     * получаются с погрешностью не больше 25% и отдаются по верхней границе корзины.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Записывает время, прошедшее с момента startNanos, полученного из System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * Верхняя граница корзины, в которую попадает заданная доля значений
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank))
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        Map<String, Object> snapshot() {
+            long count = count();
+            double sumMs = toMillis(sum.sum());
+            var result = new TreeMap<String, Object>();
+            result.put("count", count);
+            result.put("sumMs", sumMs);
+            result.put("meanMs", count == 0 ? 0.0 : sumMs / count);
+            result.put("p50Ms", toMillis(percentile(0.5)));
+            result.put("p90Ms", toMillis(percentile(0.9)));
+            result.put("p99Ms", toMillis(percentile(0.99)));
+            result.put("maxMs", toMillis(max.get()));
+            return result;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return exponent * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+
+            int exponent = index / SUB_BUCKETS;
+            int sub = index % SUB_BUCKETS;
+            if (exponent > 60)
+                return Long.MAX_VALUE;
+
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
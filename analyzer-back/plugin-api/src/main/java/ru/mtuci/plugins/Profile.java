@@ -0,0 +1,74 @@
+package ru.mtuci.plugins;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Профиль одной проверки: из каких шагов сложилось ее время. Клиент включает профиль флагом в команде, сервер
+ * записывает в него разбор кадра, очереди и кэш, а на время вызова плагина делает профиль текущим для потока
+ * плагина. Плагины дописывают свои шаги через {@link #record(String, long, String)}.
+ * <p>
+ * Если профиль не включен, текущего профиля нет и запись ничего не делает, поэтому вызывать ее можно на каждом
+ * запросе.
+ */
+public final class Profile {
+    private static final ThreadLocal<Profile> current = new ThreadLocal<>();
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Шаг проверки: имя, длительность в наносекундах и необязательное пояснение (результат плагина, попадание
+     * в кэш и т.п.)
+     */
+    public record Entry(String name, long nanos, String detail) {}
+
+    public void add(String name, long nanos, String detail) {
+        entries.add(new Entry(name, Math.max(0, nanos), detail));
+    }
+
+    /**
+     * Добавляет шаг, начавшийся в startNanos, полученный из System.nanoTime()
+     */
+    public void addSince(String name, long startNanos, String detail) {
+        add(name, System.nanoTime() - startNanos, detail);
+    }
+
+    /**
+     * Шаги в порядке записи
+     */
+    public List<Entry> entries() {
+        return List.copyOf(entries);
+    }
+
+    /**
+     * Профиль, в который пишет текущий поток, или null, если профиль не включен
+     */
+    public static Profile current() {
+        return current.get();
+    }
+
+    /**
+     * Делает профиль текущим для потока, null снимает текущий профиль. Возвращает профиль, бывший текущим до вызова
+     */
+    public static Profile activate(Profile profile) {
+        Profile previous = current.get();
+        if (profile == null)
+            current.remove();
+        else
+            current.set(profile);
+        return previous;
+    }
+
+    public static void record(String name, long nanos, String detail) {
+        Profile profile = current.get();
+        if (profile != null)
+            profile.add(name, nanos, detail);
+    }
+
+    public static void recordSince(String name, long startNanos, String detail) {
+        Profile profile = current.get();
+        if (profile != null)
+            profile.addSince(name, startNanos, detail);
+    }
+}
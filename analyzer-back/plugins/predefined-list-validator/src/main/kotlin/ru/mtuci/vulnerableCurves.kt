@@ -10,6 +10,7 @@ import ru.mtuci.plugins.Result
 import ru.mtuci.plugins.Result.Undefined
 import ru.mtuci.plugins.Result.Validated
 import ru.mtuci.plugins.Result.Vulnerable
+import java.security.spec.ECParameterSpec
 
 val list = listOf(
     Curve.nistp224,
@@ -33,13 +34,30 @@ class KnownVulnerableListValidator : Plugin {
     override fun check(named: Request.Named): Result {
         return check(Curve.resolve(named.name))
     }
+
+    // Сервер приводит имена и OID известных кривых к их параметрам, поэтому список сверяется и по ним
+    override fun check(params: Request.Params): Result {
+        val known = findInList(params.params) ?: return Undefined()
+        return vulnerable(known)
+    }
 }
 
 fun check(c: Curve?): Result {
     return if (c == null)
         Undefined()
     else if (list.contains(c))
-        Vulnerable("KnownUnsafeCurve", "Usage of curve " + c.getName() + " is insecure")
+        vulnerable(c)
     else
         Validated()
 }
+
+/**
+ * Одна и та же кривая может называться по-разному (nistp256, secp256r1, prime256v1), поэтому сравниваются параметры
+ * домена. EllipticCurve.equals не учитывает seed, это и нужно.
+ */
+private fun findInList(spec: ECParameterSpec): Curve? = list.firstOrNull {
+    val listed = it.parameterSpec
+    listed.curve == spec.curve && listed.generator == spec.generator && listed.order == spec.order && listed.cofactor == spec.cofactor
+}
+
+private fun vulnerable(c: Curve) = Vulnerable("KnownUnsafeCurve", "Usage of curve " + c.getName() + " is insecure")
@@ -7,6 +7,9 @@ import de.tilman_neumann.util.SortedMultiset_BottomUp
 import org.apache.log4j.Level
 import org.apache.log4j.LogManager
 import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Events
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Profile
 import java.io.File
 import java.math.BigInteger
 import java.nio.channels.FileChannel
@@ -29,6 +32,18 @@ private val cache = LRUCache<BigInteger, SortedMultiset<BigInteger>>()
 private val cacheDir = File("safecurves/primes").absoluteFile
 private val cacheLock = cacheDir.resolve("cache.lock")
 
+/**
+ * Во сколько раз увеличить таймаут разложения в текущем потоке: повторная проверка кривой, на которой разложение
+ * уже не уложилось в таймаут, получает больше времени
+ */
+internal val factorTimeoutScale: ThreadLocal<Int> = ThreadLocal.withInitial { 1 }
+
+private val cacheHits = Metrics.counter("factor.cache.hits")
+private val cacheMisses = Metrics.counter("factor.cache.misses")
+private val diskHits = Metrics.counter("factor.cache.diskHits")
+private val processTime = Metrics.histogram("factor.process.time")
+private val processTimeouts = Metrics.counter("factor.process.timeouts")
+
 fun main(vararg args: String) {
     LogManager.getLogger(UnsafeUtil::class.java).level = Level.OFF
     val factorizer = CombinedFactorAlgorithm(6)
@@ -62,14 +77,20 @@ private fun cache(bi: BigInteger, factors: SortedMultiset<BigInteger>) = sync.wr
     }
 }
 
-private fun fromCache(bi: BigInteger, factors: SortedMultiset<BigInteger>) = sync.read {
+/**
+ * Возвращает, откуда взяты множители: cache - из памяти, disk - с диска
+ */
+private fun fromCache(bi: BigInteger, factors: SortedMultiset<BigInteger>): String = sync.read {
     val cached = cache[bi]
     if (!cached.isNullOrEmpty()) {
         factors.addAll(cached)
-        return
+        return "cache"
     }
 
     fromDir(bi, factors)
+    if (!factors.isEmpty())
+        diskHits.increment()
+    return "disk"
 }
 
 private fun fromDir(bi: BigInteger, factors: SortedMultiset<BigInteger>) {
@@ -130,13 +151,34 @@ private val log = LoggerFactory.getLogger("ru.mtuci.Factor")
 
 class Factorizer
 
+/**
+ * Событие JFR охватывает и поиск в кэше, и процесс, если до него дошло
+ */
+private fun commit(event: Events.Factor, integer: BigInteger, source: String) {
+    event.end()
+    if (event.shouldCommit()) {
+        event.requestId = Events.requestId()
+        event.source = source
+        event.bits = integer.bitLength()
+        event.commit()
+    }
+}
+
 fun factor(integer: BigInteger): SortedMultiset<BigInteger> {
     val factors = SortedMultiset_BottomUp<BigInteger>()
-    fromCache(integer, factors)
-    if (!factors.isEmpty())
+    val lookupStarted = System.nanoTime()
+    val event = Events.Factor()
+    event.begin()
+    val source = fromCache(integer, factors)
+    if (!factors.isEmpty()) {
+        cacheHits.increment()
+        Profile.recordSince("factor", lookupStarted, source)
+        commit(event, integer, source)
         return factors
+    }
+    cacheMisses.increment()
 
-    val timeout = Integer.getInteger("factor.timeout", 60).toLong()
+    val timeout = Integer.getInteger("factor.timeout", 60).toLong() * factorTimeoutScale.get()
     val javaHome = System.getProperty("java.home")
     val javaBin = javaHome + File.separator + "bin" + File.separator + "java"
     val clazz = Factorizer::class.java
@@ -158,6 +200,7 @@ fun factor(integer: BigInteger): SortedMultiset<BigInteger> {
     val processBuilder = ProcessBuilder(command)
 
     log.info("Factorizing $integer")
+    val started = System.nanoTime()
     val process = processBuilder.start()
     var result = ""
     val outputCollected = CountDownLatch(1)
@@ -177,18 +220,29 @@ fun factor(integer: BigInteger): SortedMultiset<BigInteger> {
         }
     }
     outputCollector.start()
-    val exitValue = if (timeout > 0) {
-        if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
-            process.destroyForcibly()
-            log.info("Factorizer killed")
-        }
+    val exitValue = try {
+        if (timeout > 0) {
+            if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+                process.destroyForcibly()
+                processTimeouts.increment()
+                log.info("Factorizer killed")
+            }
 
-        process.exitValue()
-    } else {
-        process.waitFor()
+            process.exitValue()
+        } else {
+            process.waitFor()
+        }
+    } catch (e: InterruptedException) {
+        // Проверка больше никому не нужна (дедлайн запроса или бюджет плагина), процесс не должен пережить ее
+        process.destroyForcibly()
+        log.info("Factorizer interrupted, process killed")
+        throw e
     }
 
     outputCollected.await()
+    processTime.recordSince(started)
+    Profile.recordSince("factor", started, "process")
+    commit(event, integer, "process")
     if (exitValue != 0 || result.isEmpty())
         throw RuntimeException("Factorizer finished with error, output is '$result'")
 
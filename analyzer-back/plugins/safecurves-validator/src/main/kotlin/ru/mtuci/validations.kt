@@ -8,8 +8,11 @@ import de.tilman_neumann.jml.transcendental.Pi
 import io.churchkey.asn1.Oid
 import io.churchkey.ec.Curve
 import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Events
+import ru.mtuci.plugins.Metrics
 import ru.mtuci.plugins.Plugin
 import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Profile
 import ru.mtuci.plugins.Request
 import ru.mtuci.plugins.Request.Params.Supplementary
 import ru.mtuci.plugins.Result
@@ -37,7 +40,32 @@ private val `27` = bi(27)
 private val `100` = bi(100)
 private val `2^200` = bi(2).pow(200)
 
-private val cache = ConcurrentHashMap<Pair<Class<*>, CacheKey>, Result>()
+/**
+ * Запись кэша проверок: вердикт или неудачная проверка (разложение не уложилось в таймаут, исключение). Неудача
+ * хранится до [Failure.retryAt]: до этого момента кривая сразу получает TechError, после - проверяется снова,
+ * и разложению дается больше времени
+ */
+private sealed class Cached {
+    class Verdict(val result: Result) : Cached()
+    class Failure(val message: String?, val attempts: Int, val retryAt: Long) : Cached()
+}
+
+private val cache = ConcurrentHashMap<Pair<Class<*>, CacheKey>, Cached>()
+private val cacheHits = Metrics.counter("safecurves.cache.hits")
+private val cacheMisses = Metrics.counter("safecurves.cache.misses")
+private val cacheFailures = Metrics.counter("safecurves.cache.failures")
+
+/**
+ * Через сколько секунд повторять проверку после первой неудачи, каждая следующая неудача удваивает паузу
+ * до safecurves.failure.backoff.max
+ */
+private val failureBackoffSeconds = java.lang.Long.getLong("safecurves.failure.backoff", 60)
+private val maxFailureBackoffSeconds = java.lang.Long.getLong("safecurves.failure.backoff.max", 3600)
+
+/**
+ * Повторная проверка получает таймаут разложения, удвоенный за каждую неудачу, но не больше чем в 2^3 раз
+ */
+private const val MAX_TIMEOUT_DOUBLINGS = 3
 
 private val log = LoggerFactory.getLogger("ru.mtuci.SafecurvesValidator")
 
@@ -99,7 +127,10 @@ data class CacheKey(val params: ECParameterSpec) {
     }
 }
 
-abstract class BaseCachingValidator : Plugin {
+/**
+ * [clock] - текущее время в миллисекундах, от него отсчитывается повтор неудачной проверки
+ */
+abstract class BaseCachingValidator(private val clock: () -> Long = System::currentTimeMillis) : Plugin {
     override fun check(params: Request.Params): Result {
         return checkCached(params.params, params.supplementary)
     }
@@ -113,9 +144,50 @@ abstract class BaseCachingValidator : Plugin {
     }
 
     private fun checkCached(params: ECParameterSpec, supplementary: Supplementary? = null): Result {
-        return cache.computeIfAbsent(Pair(this::class.java, CacheKey(params))) {
-            log.info("Checking EC curve {}", it.second)
-            doCheck(params, supplementary)
+        val started = System.nanoTime()
+        val event = Events.CacheLookup()
+        event.begin()
+        var computed = false
+        val cached = cache.compute(Pair(this::class.java, CacheKey(params))) { key, previous ->
+            if (previous is Cached.Verdict || previous is Cached.Failure && clock() < previous.retryAt)
+                return@compute previous
+
+            log.info("Checking EC curve {}", key.second)
+            computed = true
+            check(params, supplementary, previous as Cached.Failure?)
+        }!!
+        (if (computed) cacheMisses else cacheHits).increment()
+        Profile.recordSince("safecurves.cache", started, if (computed) "miss" else if (cached is Cached.Failure) "failure" else "hit")
+        event.end()
+        if (event.shouldCommit()) {
+            event.requestId = Events.requestId()
+            event.cache = name()
+            event.hit = !computed
+            event.commit()
+        }
+        return when (cached) {
+            is Cached.Verdict -> cached.result
+            is Cached.Failure -> TechError(cached.message)
+        }
+    }
+
+    /**
+     * Прерывание (проверку отменил сервер) неудачей не считается и не кэшируется
+     */
+    private fun check(params: ECParameterSpec, supplementary: Supplementary?, previous: Cached.Failure?): Cached {
+        val attempts = previous?.attempts ?: 0
+        factorTimeoutScale.set(1 shl attempts.coerceAtMost(MAX_TIMEOUT_DOUBLINGS))
+        try {
+            return Cached.Verdict(doCheck(params, supplementary))
+        } catch (e: InterruptedException) {
+            throw e
+        } catch (e: Exception) {
+            val backoff = (failureBackoffSeconds shl attempts.coerceAtMost(20)).coerceAtMost(maxFailureBackoffSeconds)
+            log.warn("Check {} failed {} time(s), next attempt in {} s", name(), attempts + 1, backoff, e)
+            cacheFailures.increment()
+            return Cached.Failure(e.message ?: e.javaClass.name, attempts + 1, clock() + backoff * 1000)
+        } finally {
+            factorTimeoutScale.remove()
         }
     }
 
@@ -0,0 +1,87 @@
+package ru.mtuci
+
+import io.churchkey.ec.Curve
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Request
+import ru.mtuci.plugins.Request.Params.Supplementary
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import ru.mtuci.plugins.Result.Validated
+import java.security.spec.ECParameterSpec
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class CachedFailureTest {
+    private var now = 0L
+
+    /**
+     * Первые [failures] проверок падают. Кэш проверок общий и разделен по классу валидатора, поэтому в каждом тесте
+     * свой класс
+     */
+    private abstract inner class FailingValidator(private val failures: Int) : BaseCachingValidator({ now }) {
+        val scales = ArrayList<Int>()
+
+        override fun priority() = Priority.LOW
+        override fun name() = "Failing validator"
+
+        override fun doCheck(params: ECParameterSpec, supplementary: Supplementary?): Result {
+            scales += factorTimeoutScale.get()
+            if (scales.size <= failures)
+                throw RuntimeException("Factorizer timed out")
+            return Validated()
+        }
+    }
+
+    @Test
+    fun testRetriedAfterBackoff() {
+        val validator = object : FailingValidator(2) {}
+        val request = Request.Named("secp256r1")
+
+        assertEquals(TechError("Factorizer timed out"), validator.check(request))
+        now = 59_999
+        assertEquals(TechError("Factorizer timed out"), validator.check(request))
+        assertEquals(listOf(1), validator.scales, "No retry before retryAt")
+
+        // Вторая неудача удваивает и паузу, и таймаут разложения
+        now = 60_000
+        assertEquals(TechError("Factorizer timed out"), validator.check(request))
+        now = 179_999
+        assertEquals(TechError("Factorizer timed out"), validator.check(request))
+        assertEquals(listOf(1, 2), validator.scales)
+
+        now = 180_000
+        assertEquals(Validated(), validator.check(request))
+        now = 10_000_000
+        assertEquals(Validated(), validator.check(request))
+        assertEquals(listOf(1, 2, 4), validator.scales)
+    }
+
+    @Test
+    fun testFailureIsPerCurve() {
+        val validator = object : FailingValidator(1) {}
+
+        assertEquals(TechError("Factorizer timed out"), validator.check(Request.Named("secp256r1")))
+        assertEquals(Validated(), validator.check(Request.Params(Curve.secp384r1.parameterSpec, null)))
+        assertEquals(listOf(1, 1), validator.scales)
+    }
+
+    @Test
+    fun testInterruptNotCached() {
+        var interrupt = true
+        val validator = object : FailingValidator(0) {
+            override fun doCheck(params: ECParameterSpec, supplementary: Supplementary?): Result {
+                if (interrupt) {
+                    interrupt = false
+                    throw InterruptedException()
+                }
+                return super.doCheck(params, supplementary)
+            }
+        }
+        val request = Request.Named("secp256r1")
+
+        assertFailsWith<InterruptedException> { validator.check(request) }
+        assertEquals(Validated(), validator.check(request))
+        assertEquals(listOf(1), validator.scales)
+    }
+}
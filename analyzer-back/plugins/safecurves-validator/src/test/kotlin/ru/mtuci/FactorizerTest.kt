@@ -0,0 +1,41 @@
+package ru.mtuci
+
+import org.junit.jupiter.api.Test
+import java.math.BigInteger
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertTrue
+
+class FactorizerTest {
+    @Test
+    fun testInterruptKillsProcess() {
+        // Произведение двух больших простых: за время теста не раскладывается, процесс успевает запуститься
+        val random = Random(42)
+        val integer = BigInteger.probablePrime(160, random) * BigInteger.probablePrime(160, random)
+        val before = ProcessHandle.current().children().toList().toSet()
+
+        var failure: Throwable? = null
+        val thread = Thread {
+            try {
+                factor(integer)
+            } catch (e: Throwable) {
+                failure = e
+            }
+        }
+        thread.start()
+
+        val deadline = System.currentTimeMillis() + 10_000
+        var children: List<ProcessHandle> = emptyList()
+        while (children.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+            children = ProcessHandle.current().children().toList().filter { it !in before }
+        }
+        assertTrue(children.isNotEmpty(), "Factorizer process is not started")
+
+        thread.interrupt()
+        thread.join(10_000)
+        assertTrue(failure is InterruptedException, "Failure: $failure")
+        children.forEach { it.onExit().get(10, TimeUnit.SECONDS) }
+        assertTrue(children.none { it.isAlive })
+    }
+}
@@ -0,0 +1,167 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import ru.mtuci.plugins.Metrics
+
+private const val MIN_RETRY_AFTER_MILLIS = 100L
+private const val MAX_RETRY_AFTER_MILLIS = 30_000L
+
+/**
+ * Сколько задач подряд получает клиент за один обход очереди: интерактивные запросы проходят в несколько раз чаще
+ * пакетных, но пакетные не простаивают
+ */
+private const val INTERACTIVE_QUANTUM = 4
+private const val BULK_QUANTUM = 1
+
+/**
+ * Сервер перегружен, клиенту стоит повторить запрос не раньше чем через [retryAfterMillis]
+ */
+class BusyException(val retryAfterMillis: Long) : RuntimeException("Server is busy, retry after $retryAfterMillis ms")
+
+/**
+ * Ограничение одновременной работы: не больше [maxActive] выполняющихся задач и не больше [maxQueued] ожидающих.
+ * Задача сверх очереди не ждет, а сразу получает [BusyException] с оценкой, когда очередь освободится.
+ * Оценка строится по среднему времени выполнения задач.
+ *
+ * Очередь справедливая (deficit round robin): у каждого клиента своя очередь, освободившееся место получает
+ * следующий по кругу клиент, а не тот, кто встал в очередь раньше. Поэтому клиент с тысячами запросов не
+ * задерживает остальных дольше, чем на одну свою задачу за круг. Внутри клиента интерактивные запросы идут раньше
+ * пакетных ([ICommand.bulk]), а за свой ход клиент с интерактивным запросом получает [INTERACTIVE_QUANTUM] мест,
+ * с пакетным - [BULK_QUANTUM].
+ */
+internal class Admission(private val name: String, private val maxActive: Int, private val maxQueued: Int) {
+    private class Client(val key: Any) {
+        val interactive = ArrayDeque<CompletableDeferred<Unit>>()
+        val bulk = ArrayDeque<CompletableDeferred<Unit>>()
+        var deficit = 0
+
+        fun next() = if (interactive.isNotEmpty()) interactive else bulk.takeIf { it.isNotEmpty() }
+    }
+
+    private val lock = Any()
+    private val clients = HashMap<Any, Client>()
+    /**
+     * Клиенты с ожидающими задачами в порядке обхода, первый - тот, чей сейчас ход
+     */
+    private val round = ArrayDeque<Client>()
+    private var running = 0
+    private var waiting = 0
+    private val rejected = Metrics.counter("admission.$name.rejected")
+
+    /**
+     * Скользящее среднее времени выполнения в наносекундах
+     */
+    @Volatile
+    private var averageNanos = 0L
+
+    val active get() = synchronized(lock) { running }
+    val queued get() = synchronized(lock) { waiting }
+
+    /**
+     * [client] - чья это задача, обычно соединение. Задачи без клиента делят одну общую очередь
+     */
+    suspend fun <T> run(client: Any = this, bulk: Boolean = false, block: suspend () -> T): T {
+        acquire(client, bulk)
+        val started = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            release()
+            val elapsed = System.nanoTime() - started
+            val average = averageNanos
+            averageNanos = if (average == 0L) elapsed else average + (elapsed - average) / 8
+        }
+    }
+
+    private suspend fun acquire(key: Any, bulk: Boolean) {
+        val (client, ticket) = synchronized(lock) {
+            if (running < maxActive && waiting == 0) {
+                running++
+                return
+            }
+            if (waiting >= maxQueued) {
+                rejected.increment()
+                throw BusyException(retryAfterMillis())
+            }
+
+            waiting++
+            val client = clients.getOrPut(key) { Client(key).also { round.addLast(it) } }
+            val ticket = CompletableDeferred<Unit>()
+            (if (bulk) client.bulk else client.interactive).addLast(ticket)
+            client to ticket
+        }
+
+        try {
+            ticket.await()
+        } catch (e: CancellationException) {
+            val granted = synchronized(lock) {
+                val removed = client.interactive.remove(ticket) || client.bulk.remove(ticket)
+                if (removed) {
+                    waiting--
+                    if (client.next() == null)
+                        forget(client)
+                }
+                !removed
+            }
+            // Место уже было передано этой задаче, отдаем его следующей
+            if (granted)
+                release()
+            throw e
+        }
+    }
+
+    private fun release() {
+        val next = synchronized(lock) {
+            val next = next()
+            if (next == null)
+                running--
+            else
+                waiting--
+            next
+        }
+        // Место переходит ожидающей задаче, не освобождаясь
+        next?.complete(Unit)
+    }
+
+    /**
+     * Вызывается под [lock]
+     */
+    private fun next(): CompletableDeferred<Unit>? {
+        while (true) {
+            val client = round.firstOrNull() ?: return null
+            val queue = client.next()
+            if (queue == null) {
+                forget(client)
+                continue
+            }
+
+            if (client.deficit < 1)
+                client.deficit += if (queue === client.interactive) INTERACTIVE_QUANTUM else BULK_QUANTUM
+            client.deficit--
+            val ticket = queue.removeFirst()
+            if (client.next() == null) {
+                forget(client)
+            } else if (client.deficit < 1) {
+                round.removeFirst()
+                round.addLast(client)
+            }
+            return ticket
+        }
+    }
+
+    /**
+     * У клиента больше нет ожидающих задач, неизрасходованный ход не копится. Вызывается под [lock]
+     */
+    private fun forget(client: Client) {
+        client.deficit = 0
+        clients.remove(client.key)
+        round.remove(client)
+    }
+
+    /**
+     * Сколько примерно займет разбор текущей очереди
+     */
+    fun retryAfterMillis() =
+        (averageNanos / 1_000_000 * (queued + 1) / maxActive).coerceIn(MIN_RETRY_AFTER_MILLIS, MAX_RETRY_AFTER_MILLIS)
+}
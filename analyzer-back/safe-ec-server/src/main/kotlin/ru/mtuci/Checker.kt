@@ -0,0 +1,274 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.async
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.IPlugins
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Profile
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import ru.mtuci.plugins.Result.Undefined
+import ru.mtuci.plugins.Result.Validated
+import ru.mtuci.plugins.Result.Vulnerable
+import ru.mtuci.worker.WorkerPool
+import java.net.SocketAddress
+import java.nio.file.Paths
+
+private val log = LoggerFactory.getLogger("Server")
+
+/**
+ * Проверка кривой без сетевого слоя: канонизация запроса, кэш вердиктов, объединение одинаковых проверок и план
+ * плагинов. Общая для [Server] и встроенного режима [Embedded], поэтому ответы в обоих режимах совпадают.
+ */
+internal class Checker(private val plugins: IPlugins, private val config: ServerConfig, private val scope: CoroutineScope) {
+    private val executor = PluginExecutor(config.parallelTiers, config.pluginTimeoutMillis, config.pluginTimeoutUndefined,
+        config.pluginThreads, config.lowPluginThreads)
+    private val cache = VerdictCache(config.cacheSize, config.cacheTtlSeconds * 1000)
+    private val flights = SingleFlight<FlightKey, Result>(scope)
+    private val requestTime = Metrics.histogram("requests.time")
+    private val admission = Admission("server", config.maxActive, config.maxActiveQueued)
+    private val provisionalResponses = Metrics.counter("requests.provisional")
+    private val peerRejected = Metrics.counter("peers.rejected")
+    private val incompleteResults = Metrics.counter("requests.incomplete")
+    private val store = config.storeFile?.let { VerdictStore(Paths.get(it), { plugins.plan.fingerprint }, scope) }
+    private val peers = config.peers.takeIf { it.isNotEmpty() }?.let { Peers(it, config.peerTimeoutMillis, scope) }
+    private val workers = WorkerPool.of(config, scope)
+    /**
+     * Вердикты по [CanonicalRequest.storeKey] - свои и присланные соседями. Из них отвечаем на [LOOKUP]
+     */
+    private val shared = VerdictCache(if (peers == null) 0 else config.cacheSize, config.cacheTtlSeconds * 1000)
+
+    val cacheStats get() = cache.stats
+
+    fun stats() = statsJson(cache.stats, flights.coalescedCount, flights.inFlight, admission.active, admission.queued, executor.pools)
+
+    suspend fun evaluate(command: ICommand): Response = evaluate(command, false).response
+
+    /**
+     * В прогрессивном режиме кривая, которой нет в кэше, сначала проверяется только быстрыми уровнями плана
+     * (без LOW). Если они ничего не нашли, ответ по ним возвращается сразу как предварительный, а полная проверка
+     * продолжается в фоне: ее результат попадает в кэш и в [Evaluation.final].
+     *
+     * [client] и [bulk] определяют место в очереди на выполнение плагинов, см. [Admission]. В [profile] пишется,
+     * откуда взят вердикт, ожидание в очереди сервера и шаги плагинов
+     */
+    suspend fun evaluate(command: ICommand, progressive: Boolean, client: Any = this, bulk: Boolean = false,
+                         profile: Profile? = null): Evaluation {
+        val started = System.nanoTime()
+        val evaluation = try {
+            val canonical = Curves.canonicalize(command.toRequest())
+            val plan = plugins.plan
+            val cached = cached(canonical, plan, profile)
+            when {
+                cached != null -> Evaluation(toResponse(command.id, cached))
+                progressive && plan.fast !== plan -> evaluateProgressive(command.id, canonical, plan, client, bulk, profile)
+                else -> Evaluation(toResponse(command.id, check(command.id, canonical, plan, client, bulk, profile)))
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Evaluation(failure(command.id, e))
+        }
+
+        requestTime.recordSince(started)
+        return evaluation
+    }
+
+    private suspend fun evaluateProgressive(id: String, canonical: CanonicalRequest, plan: ExecutionPlan, client: Any, bulk: Boolean,
+                                            profile: Profile?): Evaluation {
+        val queued = System.nanoTime()
+        val early = admission.run(client, bulk) {
+            profile?.addSince("queue.server", queued, null)
+            executor.execute(canonical.request, plan.fast, profile, id)
+        }
+        // Уязвимость или ошибка на быстрых уровнях окончательна: до уровня LOW полная проверка тоже не дойдет
+        if (early.result is Vulnerable || early.result is TechError) {
+            remember(canonical, plan, early)
+            return Evaluation(toResponse(id, early.result))
+        }
+
+        provisionalResponses.increment()
+        // В фоне досчитываются только медленные уровни, быстрые уже выполнены
+        val final = scope.async {
+            try {
+                toResponse(id, check(id, canonical, plan, client, bulk, profile, early))
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                failure(id, e)
+            }
+        }
+        return Evaluation(toResponse(id, early.result, provisional = true), final)
+    }
+
+    private fun failure(id: String, e: Exception): Response {
+        if (e is BusyException) {
+            log.warn("Rejected request {}: {}", id, e.message)
+            return Response(id, BUSY, e.retryAfterMillis.toString())
+        }
+
+        log.error("Got error while running plugins", e)
+        return toResponse(id, TechError(e.message))
+    }
+
+    private fun toResponse(id: String, result: Result, provisional: Boolean = false): Response {
+        log.info("Result is {}", result)
+        return when (result) {
+            is Validated, is Undefined -> Response(id, SUCCESS, provisional = provisional)
+            is TechError -> Response(id, ERROR, result.message)
+            is Vulnerable -> Response(id, VULNERABLE, result.message, result.rule)
+        }
+    }
+
+    /**
+     * Одинаковые проверки, пришедшие одновременно, выполняются один раз. План входит в ключ, чтобы после
+     * перезагрузки плагинов запросы не получили результат старого набора. Шаги плагинов попадают в профиль
+     * того запроса, который начал выполнение, остальным записывается только время ожидания. [fast] - уже
+     * посчитанный результат быстрых уровней, если есть.
+     */
+    private suspend fun check(id: String, canonical: CanonicalRequest, plan: ExecutionPlan, client: Any, bulk: Boolean, profile: Profile?,
+                              fast: Outcome? = null): Result {
+        val queued = System.nanoTime()
+        var leader = false
+        val evaluate: suspend () -> Result = {
+            leader = true
+            admission.run(client, bulk) {
+                profile?.addSince("queue.server", queued, null)
+                run(id, canonical, plan, profile, fast)
+            }
+        }
+        if (!config.singleFlight)
+            return evaluate()
+
+        return flights.run(FlightKey(canonical.key, plan), evaluate).also {
+            if (!leader)
+                profile?.addSince("coalesced", queued, null)
+        }
+    }
+
+    /**
+     * С соседями или вычислителями сначала выполняются быстрые уровни, и только если они не дали окончательного
+     * вердикта, вердикт спрашивается у соседей. Если ни у кого из них вердикта нет, плагины LOW выполняет вычислитель
+     * или, если их нет или они недоступны, сам сервер. Если быстрые уровни уже выполнены ([fast]), выполняются
+     * только медленные
+     */
+    private suspend fun run(id: String, canonical: CanonicalRequest, plan: ExecutionPlan, profile: Profile?, fast: Outcome? = null): Result {
+        val key = canonical.storeKey
+        if (fast == null && ((peers == null || key == null) && workers == null || plan.fast === plan))
+            return executor.execute(canonical.request, plan, profile, id).also { remember(canonical, plan, it) }.result
+
+        val early = fast ?: executor.execute(canonical.request, plan.fast, profile, id)
+        if (early.result is Vulnerable || early.result is TechError)
+            return early.also { remember(canonical, plan, it) }.result
+
+        if (peers != null && key != null) {
+            val started = System.nanoTime()
+            val verdict = peers.lookup(key, plan.fingerprint)
+            profile?.addSince("peers", started, if (verdict == null) "miss" else "hit")
+            verdict?.let { return it.also { remember(canonical, plan, Outcome(it), local = false) } }
+        }
+        val started = System.nanoTime()
+        val slow = workers?.run(canonical.request, plan, id)?.also { profile?.addSince("worker", started, null) }
+            ?: executor.execute(canonical.request, plan.slow, profile, id)
+        return early.then(slow).also { remember(canonical, plan, it) }.result
+    }
+
+    /**
+     * Сначала кэш в памяти, затем вердикты соседей и вердикты на диске. Найденное поднимается в кэш
+     */
+    private fun cached(canonical: CanonicalRequest, plan: ExecutionPlan, profile: Profile?): Result? {
+        val started = System.nanoTime()
+        val (result, source) = lookup(canonical, plan)
+        profile?.addSince("cache", started, source)
+        return result
+    }
+
+    private fun lookup(canonical: CanonicalRequest, plan: ExecutionPlan): Pair<Result?, String> {
+        cache.get(canonical.key, plan)?.let { return it to "hit" }
+        val key = canonical.storeKey ?: return null to "miss"
+        shared.get(key, plan)?.let { return it.also { cache.put(canonical.key, plan, it) } to "shared" }
+        store?.get(key, plan.fingerprint)?.let { return it.also { cache.put(canonical.key, plan, it) } to "store" }
+        return null to "miss"
+    }
+
+    /**
+     * Вердикт соседа ([local] = false) хранится только в памяти: на диск и дальше по соседям уходят лишь вердикты,
+     * посчитанные этим сервером. Неполный результат (плагин не уложился в бюджет) не запоминается вовсе, как и TechError
+     */
+    private fun remember(canonical: CanonicalRequest, plan: ExecutionPlan, outcome: Outcome, local: Boolean = true) {
+        val result = outcome.result
+        if (!outcome.complete) {
+            incompleteResults.increment()
+            log.info("Result {} is incomplete, plugins exceeded their time budget, not remembered", result)
+            return
+        }
+
+        cache.put(canonical.key, plan, result)
+        // Вердикт устаревшего плана не сохраняется, как и в кэше
+        val key = canonical.storeKey
+        if (plan !== plugins.plan || key == null)
+            return
+
+        shared.put(key, plan, result)
+        if (!local)
+            return
+
+        store?.put(key, plan.fingerprint, result)
+        peers?.advertise(key, plan.fingerprint, result)
+    }
+
+    /**
+     * Команды соседей: [LOOKUP] отвечается из памяти и с диска без запуска плагинов, вердикт [VERDICT]
+     * запоминается в памяти, если посчитан тем же набором плагинов. Принимаются только с адресов соседей
+     * из server.peers, от остальных клиентов - ошибка
+     */
+    fun peer(command: Command, from: SocketAddress?): Response = try {
+        if (peers == null || !peers.accepts(from)) {
+            peerRejected.increment()
+            log.warn("Rejected {} from {}: not a configured peer", command.type, from)
+            Response(command.id, ERROR, "Peer commands are not accepted from this client")
+        } else {
+            peer(command)
+        }
+    } catch (e: Exception) {
+        log.error("Bad peer command {}", command.type, e)
+        Response(command.id, ERROR, e.message)
+    }
+
+    private fun peer(command: Command): Response {
+        val verdict = Json.decodeFromString<PeerVerdict>(command.value)
+        val plan = plugins.plan
+        val current = verdict.fingerprint == plan.fingerprint
+        return when (command.type) {
+            LOOKUP -> {
+                val result = if (current) shared.get(verdict.key, plan) ?: store?.get(verdict.key, verdict.fingerprint) else null
+                Response(command.id, SUCCESS, result?.let { Json.encodeToString(PeerVerdict.of(verdict.fingerprint, verdict.key, it)) })
+            }
+            else -> {
+                val result = verdict.toResult()
+                if (current && result != null)
+                    shared.put(verdict.key, plan, result)
+                Response(command.id, SUCCESS)
+            }
+        }
+    }
+
+    private data class FlightKey(val key: Any, val plan: ExecutionPlan)
+
+    fun stop() {
+        if (cache.enabled)
+            log.info("Verdict cache: {}", cache.stats)
+        if (config.singleFlight)
+            log.info("Coalesced checks: {}", flights.coalescedCount)
+        store?.close()
+        peers?.close()
+        workers?.stop()
+        executor.stop()
+    }
+}
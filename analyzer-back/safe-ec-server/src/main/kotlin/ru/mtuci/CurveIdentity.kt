@@ -0,0 +1,151 @@
+package ru.mtuci
+
+import io.churchkey.asn1.Oid
+import io.churchkey.ec.Curve
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Request
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.OID
+import ru.mtuci.plugins.Request.Params
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.security.spec.ECFieldF2m
+import java.security.spec.ECFieldFp
+import java.security.spec.ECParameterSpec
+import java.util.concurrent.ConcurrentHashMap
+
+private val log = LoggerFactory.getLogger("Server")
+
+/**
+ * Идентификатор кривой - первые 128 бит SHA-256 от параметров домена: поле, a, b, базовая точка, порядок, кофактор.
+ * Seed в хэш не входит, он описывает способ генерации, а не саму кривую.
+ */
+data class CurveId(val high: Long, val low: Long) {
+    override fun toString() = "%016x%016x".format(high, low)
+
+    companion object {
+        fun of(spec: ECParameterSpec): CurveId {
+            val digest = MessageDigest.getInstance("SHA-256")
+            when (val field = spec.curve.field) {
+                is ECFieldFp -> {
+                    digest.update(0)
+                    digest.update(field.p)
+                }
+                is ECFieldF2m -> {
+                    digest.update(1)
+                    digest.update(BigInteger.valueOf(field.m.toLong()))
+                    digest.update(field.reductionPolynomial ?: BigInteger.ZERO)
+                }
+                else -> throw IllegalArgumentException("Unsupported field ${field.javaClass}")
+            }
+            digest.update(spec.curve.a)
+            digest.update(spec.curve.b)
+            digest.update(spec.generator.affineX)
+            digest.update(spec.generator.affineY)
+            digest.update(spec.order)
+            digest.update(BigInteger.valueOf(spec.cofactor.toLong()))
+            val hash = ByteBuffer.wrap(digest.digest())
+            return CurveId(hash.long, hash.long)
+        }
+
+        private fun MessageDigest.update(value: BigInteger) {
+            val bytes = value.toByteArray()
+            update(ByteBuffer.allocate(4).putInt(bytes.size).array())
+            update(bytes)
+        }
+    }
+}
+
+/**
+ * Запрос, приведенный к единой форме. [key] одинаков для всех способов сослаться на одну и ту же кривую, им пользуются
+ * все кэши сервера. [request] - то, что видят плагины: для известной кривой это всегда Params с ее эталонными
+ * параметрами, так что имя, OID и явные параметры проверяются одинаково.
+ */
+class CanonicalRequest(val key: Any, val request: Request, val curve: CurveId?) {
+    /**
+     * [key] в виде строки для хранения на диске, null - если ключ сохранять нельзя
+     */
+    val storeKey: String?
+        get() = when (key) {
+            is CurveId -> "c:$key"
+            is SeededCurveKey -> "s:${key.curve}:${key.seed}"
+            is Named -> "n:${key.name}"
+            is OID -> "o:${key.oid}"
+            else -> null
+        }
+
+    override fun toString() = "CanonicalRequest[key=$key, request=$request]"
+}
+
+/**
+ * Ключ для явных параметров с собственным seed: от seed зависит результат проверки, поэтому такие запросы
+ * не смешиваются с эталонной кривой.
+ */
+private data class SeededCurveKey(val curve: CurveId, val seed: CurveId)
+
+/**
+ * Справочник известных кривых. Имена и OID, которые churchkey знает под разными константами (nistp256, secp256r1,
+ * prime256v1), сводятся к одному [CurveId] и одному экземпляру параметров.
+ */
+object Curves {
+    private class Known(val id: CurveId, val spec: ECParameterSpec)
+
+    private val byId: Map<CurveId, Known>
+    private val byName = ConcurrentHashMap<String, CanonicalRequest>()
+
+    init {
+        val known = HashMap<CurveId, Known>()
+        for (curve in Curve.values()) {
+            val spec = try {
+                curve.parameterSpec
+            } catch (e: Exception) {
+                null
+            } ?: continue
+
+            val id = CurveId.of(spec)
+            known.putIfAbsent(id, Known(id, spec))
+        }
+        byId = known
+        log.info("Known curves: {} constants, {} distinct curves", Curve.values().size, byId.size)
+    }
+
+    fun canonicalize(request: Request): CanonicalRequest = when (request) {
+        is Named -> byName[request.name] ?: resolve(request, request.name) { Curve.resolve(request.name) }
+        is OID -> byName[request.oid] ?: resolve(request, request.oid) { Curve.resolve(Oid.fromString(request.oid)) }
+        is Params -> canonicalize(request)
+        else -> CanonicalRequest(request, request, null)
+    }
+
+    private fun canonicalize(request: Params): CanonicalRequest {
+        val id = CurveId.of(request.params)
+        val known = byId[id]
+        val seed = request.params.curve.seed?.takeIf { it.isNotEmpty() }
+        val knownSeed = known?.spec?.curve?.seed?.takeIf { it.isNotEmpty() }
+        return when {
+            known != null && (seed == null || seed.contentEquals(knownSeed)) -> CanonicalRequest(id, Params(known.spec, null), id)
+            seed != null -> CanonicalRequest(SeededCurveKey(id, seedId(seed)), request, id)
+            else -> CanonicalRequest(id, request, id)
+        }
+    }
+
+    private inline fun resolve(request: Request, alias: String, lookup: () -> Curve?): CanonicalRequest {
+        val spec = try {
+            lookup()?.parameterSpec
+        } catch (e: Exception) {
+            null
+        }
+        val known = spec?.let { byId[CurveId.of(it)] }
+            ?: return CanonicalRequest(request, request, null)
+
+        // Известных имен конечное число, поэтому их можно запоминать без ограничения размера
+        val canonical = CanonicalRequest(known.id, Params(known.spec, null), known.id)
+        byName[alias] = canonical
+        return canonical
+    }
+
+    private fun seedId(seed: ByteArray): CurveId {
+        val hash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(seed))
+        return CurveId(hash.long, hash.long)
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.IPlugins
+import ru.mtuci.plugins.Plugins
+import java.util.concurrent.CompletableFuture
+
+private val log = LoggerFactory.getLogger("Server")
+
+/**
+ * Встроенный режим для запуска из сканера: проверки выполняются в его процессе, без сокетов и кодирования кадров.
+ * Плагины загружаются из [pluginsDir] так же, как сервером (jar-файлы и ServiceLoader), а проверяет тот же
+ * [Checker], поэтому ответы не отличаются от ответов сервера. Каталог плагинов не отслеживается.
+ *
+ * Конфигурация по умолчанию не берет из системных свойств то, что выходит за процесс сканера: хранилище вердиктов,
+ * соседей и вычислители.
+ */
+class Embedded internal constructor(private val plugins: IPlugins, config: ServerConfig) : AutoCloseable {
+    /**
+     * Очередь проверок по умолчанию не ограничена: повторять запросы после BUSY встроенному клиенту некому
+     */
+    @JvmOverloads
+    constructor(pluginsDir: String, config: ServerConfig = ServerConfig(maxActiveQueued = Int.MAX_VALUE, storeFile = null, peers = emptyList(),
+        workers = emptyList(), workersSpawn = 0)) : this(Plugins(pluginsDir, watch = false), config)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val checker = Checker(plugins, config, scope)
+
+    init {
+        log.info("Embedded checker started, {}", plugins.plan)
+    }
+
+    /**
+     * Команда в терминах JSON-протокола: [type] - OID, Name или Params, [value] - OID, имя или JSON параметров
+     */
+    fun check(id: String, type: String, value: String): CompletableFuture<Response> {
+        val future = CompletableFuture<Response>()
+        scope.launch { future.complete(checker.evaluate(Command(id, type, value))) }
+            .invokeOnCompletion { cause -> cause?.let { future.completeExceptionally(it) } }
+        return future
+    }
+
+    fun stats() = checker.stats()
+
+    override fun close() {
+        checker.stop()
+        plugins.stop()
+        scope.cancel()
+    }
+}
@@ -11,9 +11,10 @@ fun main(args: Array<String>) {
 
     val port = Integer.parseInt(args.elementAtOrElse(0) { "15555" })
     val pluginsDir = Paths.get(System.getProperty("user.dir")).resolve("plugins").toAbsolutePath()
-    val plugins = Plugins(pluginsDir.toString())
+    val config = ServerConfig()
+    val plugins = Plugins(pluginsDir.toString(), config.pluginsReloadDelayMillis)
 
-    val server = Server(port, plugins)
+    val server = Server(port, plugins, config)
     GlobalScope.launch {
         log.debug("Launching plugins monitor")
         plugins.monitor()
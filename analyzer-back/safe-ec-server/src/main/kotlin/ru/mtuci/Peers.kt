@@ -0,0 +1,262 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import ru.mtuci.engine.FrameDecoder
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import ru.mtuci.plugins.Result.Undefined
+import ru.mtuci.plugins.Result.Validated
+import ru.mtuci.plugins.Result.Vulnerable
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.net.SocketAddress
+import java.net.UnknownHostException
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.Base64
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+private val log = LoggerFactory.getLogger("Server")
+
+private const val MIN_RETRY_MILLIS = 1000L
+private const val MAX_RETRY_MILLIS = 30_000L
+private const val MAX_FRAME_SIZE = 64 * 1024
+private const val RESOLVE_INTERVAL_MILLIS = 60_000L
+
+/**
+ * Вердикт в командах обмена между серверами. [LOOKUP] спрашивает вердикт по ключу ([verdict] пустой), [VERDICT]
+ * сообщает новый. Ключ - [CanonicalRequest.storeKey], вердикт действителен только при том же отпечатке плагинов.
+ */
+@Serializable
+internal class PeerVerdict(val fingerprint: String, val key: String, val verdict: String? = null,
+                           val rule: String? = null, val message: String? = null) {
+    fun toResult(): Result? = when (verdict) {
+        "Validated" -> Validated()
+        "Undefined" -> Undefined()
+        "Vulnerable" -> Vulnerable(rule, message)
+        else -> null
+    }
+
+    companion object {
+        fun of(fingerprint: String, key: String, result: Result) = when (result) {
+            is Validated -> PeerVerdict(fingerprint, key, "Validated")
+            is Undefined -> PeerVerdict(fingerprint, key, "Undefined")
+            is Vulnerable -> PeerVerdict(fingerprint, key, "Vulnerable", result.rule, result.message)
+            is TechError -> PeerVerdict(fingerprint, key)
+        }
+    }
+}
+
+/**
+ * Соседние серверы с тем же набором плагинов. Перед запуском плагинов LOW вердикт спрашивается у всех соседей
+ * сразу командой [LOOKUP], берется первый найденный. Посчитанный вердикт рассылается соседям командой [VERDICT].
+ *
+ * Обмен идет обычным JSON-протоколом по одному соединению с каждым соседом, ответы сопоставляются по reqId.
+ * Сосед отвечает только из памяти и с диска и сам плагины не запускает, поэтому поиск не может зациклиться.
+ * Недоступный сосед пропускается, повторное подключение - с растущей паузой.
+ *
+ * Команды соседей сервер принимает только с адресов из списка соседей, см. [accepts]. Адреса соседей разрешаются
+ * при старте и затем раз в минуту в фоне, поэтому проверка команды к DNS не обращается.
+ */
+internal class Peers(addresses: List<String>, private val timeoutMillis: Long, private val scope: CoroutineScope) {
+    private val peers = addresses.map { Peer(it) }
+    private val ids = AtomicLong()
+
+    private val hits = Metrics.counter("peers.hits")
+    private val misses = Metrics.counter("peers.misses")
+    private val advertised = Metrics.counter("peers.advertised")
+
+    private val resolver = scope.launch(Dispatchers.IO) {
+        while (true) {
+            delay(RESOLVE_INTERVAL_MILLIS)
+            peers.forEach { it.resolve() }
+        }
+    }
+
+    init {
+        peers.forEach { it.resolve() }
+    }
+
+    suspend fun lookup(key: String, fingerprint: String): Result? {
+        val value = Json.encodeToString(PeerVerdict(fingerprint, key))
+        val found = coroutineScope {
+            val answers = Channel<Result?>(peers.size)
+            for (peer in peers)
+                launch(Dispatchers.IO) { answers.send(peer.lookup(Command(nextId(), LOOKUP, value), key, fingerprint)) }
+
+            var result: Result? = null
+            for (i in peers.indices) {
+                result = answers.receive()
+                if (result != null)
+                    break
+            }
+            coroutineContext.cancelChildren()
+            result
+        }
+
+        if (found == null)
+            misses.increment()
+        else
+            hits.increment()
+        return found
+    }
+
+    fun advertise(key: String, fingerprint: String, result: Result) {
+        if (result is TechError)
+            return
+
+        val value = Json.encodeToString(PeerVerdict.of(fingerprint, key, result))
+        scope.launch(Dispatchers.IO) {
+            for (peer in peers)
+                peer.send(Command(nextId(), VERDICT, value))
+            advertised.increment()
+        }
+    }
+
+    /**
+     * Соединение открыто с адреса одного из соседей. Порт не сравнивается: сосед подключается с произвольного порта.
+     * Локальный сокет соседом не считается
+     */
+    fun accepts(address: SocketAddress?): Boolean {
+        val remote = (address as? InetSocketAddress)?.address ?: return false
+        return peers.any { remote in it.addresses }
+    }
+
+    fun close() {
+        resolver.cancel()
+        peers.forEach { it.close() }
+    }
+
+    private fun nextId() = "peer-${ids.incrementAndGet()}"
+
+    private inner class Peer(private val address: String) {
+        private val host = address.substringBeforeLast(':')
+        private val port = address.substringAfterLast(':').toInt()
+        private val lock = Any()
+        private val pending = ConcurrentHashMap<String, CompletableDeferred<Response>>()
+        private var socket: Socket? = null
+        private var retryAt = 0L
+        private var retryMillis = MIN_RETRY_MILLIS
+
+        @Volatile
+        var addresses: Set<InetAddress> = emptySet()
+            private set
+
+        /**
+         * Если имя не разрешилось, остаются прежние адреса
+         */
+        fun resolve() {
+            try {
+                addresses = InetAddress.getAllByName(host).toSet()
+            } catch (e: UnknownHostException) {
+                log.warn("Cannot resolve peer {}: {}", address, e.message)
+            }
+        }
+
+        suspend fun lookup(command: Command, key: String, fingerprint: String): Result? {
+            val reply = CompletableDeferred<Response>()
+            pending[command.id] = reply
+            try {
+                if (!send(command))
+                    return null
+
+                val response = withTimeoutOrNull(timeoutMillis) { reply.await() } ?: return null
+                val verdict = response.info?.takeIf { response.type == SUCCESS }?.let { Json.decodeFromString<PeerVerdict>(it) }
+                    ?: return null
+                return if (verdict.key == key && verdict.fingerprint == fingerprint) verdict.toResult() else null
+            } catch (e: Exception) {
+                log.warn("Bad lookup response from peer {}", address, e)
+                return null
+            } finally {
+                pending.remove(command.id)
+            }
+        }
+
+        fun send(command: Command): Boolean {
+            val frame = Base64.getEncoder().encode(Json.encodeToString(command).toByteArray(StandardCharsets.UTF_8)) + '$'.code.toByte()
+            synchronized(lock) {
+                val socket = connection() ?: return false
+                return try {
+                    socket.getOutputStream().write(frame)
+                    true
+                } catch (e: IOException) {
+                    log.warn("Cannot send to peer {}: {}", address, e.message)
+                    socket.close()
+                    false
+                }
+            }
+        }
+
+        /**
+         * Вызывается под [lock]
+         */
+        private fun connection(): Socket? {
+            socket?.takeIf { !it.isClosed }?.let { return it }
+            if (System.currentTimeMillis() < retryAt)
+                return null
+
+            return try {
+                val socket = Socket()
+                socket.connect(InetSocketAddress(host, port), timeoutMillis.toInt())
+                socket.tcpNoDelay = true
+                log.info("Connected to peer {}", address)
+                this.socket = socket
+                retryMillis = MIN_RETRY_MILLIS
+                scope.launch(Dispatchers.IO) { read(socket) }
+                socket
+            } catch (e: IOException) {
+                log.warn("Peer {} is unavailable, next attempt in {} ms: {}", address, retryMillis, e.message)
+                retryAt = System.currentTimeMillis() + retryMillis
+                retryMillis = (retryMillis * 2).coerceAtMost(MAX_RETRY_MILLIS)
+                null
+            }
+        }
+
+        private fun read(socket: Socket) {
+            val decoder = FrameDecoder(MAX_FRAME_SIZE)
+            val buffer = ByteBuffer.allocate(8192)
+            try {
+                val input = socket.getInputStream()
+                while (true) {
+                    val read = input.read(buffer.array())
+                    if (read == -1)
+                        break
+                    buffer.position(0).limit(read)
+                    decoder.decode(buffer) { frame ->
+                        val response = Json.decodeFromString<Response>(String(Base64.getDecoder().decode(frame), StandardCharsets.UTF_8))
+                        // Ответы на рассылку вердиктов никто не ждет
+                        response.reqId?.let { pending[it]?.complete(response) }
+                    }
+                }
+            } catch (e: Exception) {
+                if (!socket.isClosed)
+                    log.warn("Connection to peer {} failed: {}", address, e.message)
+            } finally {
+                socket.close()
+                log.info("Disconnected from peer {}", address)
+            }
+        }
+
+        fun close() = synchronized(lock) {
+            socket?.close()
+            socket = null
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Events
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.PluginMetrics
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Profile
+import ru.mtuci.plugins.Request
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import ru.mtuci.plugins.Result.Undefined
+import ru.mtuci.plugins.Result.Validated
+import ru.mtuci.plugins.Result.Vulnerable
+import java.lang.management.ManagementFactory
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+private val log = LoggerFactory.getLogger("Server")
+
+private val threads = ManagementFactory.getThreadMXBean()
+
+/**
+ * Потоки для плагинов одной группы приоритетов. Потоков не больше [threads], остальные задачи ждут в очереди:
+ * вычисления плагинов не отнимают процессор друг у друга сверх числа ядер и не смешиваются с потоками ввода-вывода.
+ * Размер очереди, занятость потоков и время ожидания в очереди видны в метриках.
+ */
+internal class PluginPool(val name: String, val threads: Int) {
+    private val threadNumber = AtomicInteger()
+    private val executor = ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, LinkedBlockingQueue()) { task ->
+        Thread(task, "plugin-$name-${threadNumber.incrementAndGet()}").apply { isDaemon = true }
+    }.apply { allowCoreThreadTimeOut(true) }
+    private val wait = Metrics.histogram("pool.$name.wait")
+    private val busy = Metrics.counter("pool.$name.busyNanos")
+
+    val active get() = executor.activeCount
+    val queued get() = executor.queue.size
+    val completed get() = executor.completedTaskCount
+
+    /**
+     * Доля занятых потоков в момент вызова
+     */
+    val utilisation get() = active.toDouble() / threads
+
+    fun submit(task: () -> Unit): Future<*> {
+        val submitted = System.nanoTime()
+        return executor.submit {
+            val started = System.nanoTime()
+            wait.record(started - submitted)
+            try {
+                task()
+            } finally {
+                busy.add(System.nanoTime() - started)
+            }
+        }
+    }
+
+    fun stop() {
+        executor.shutdownNow()
+    }
+}
+
+/**
+ * Результат плана. [complete] = false, если какой-то плагин не уложился в бюджет и его ответ неизвестен: такой
+ * результат отдается клиенту, но не кэшируется, не сохраняется и не рассылается соседям. Уязвимость окончательна,
+ * даже если другой плагин не уложился
+ */
+internal class Outcome(val result: Result, val complete: Boolean = true) {
+    /**
+     * Результат следующего этапа проверки: полон, только если полны оба этапа
+     */
+    fun then(next: Outcome) = Outcome(next.result, next.result is Vulnerable || complete && next.complete)
+}
+
+/**
+ * Выполняет план плагинов для одного запроса. Уровни приоритета идут строго друг за другом, следующий запускается,
+ * только если предыдущий не нашел уязвимость и не завершился ошибкой.
+ *
+ * Плагины одного уровня независимы, поэтому при [parallel] они запускаются одновременно. Первый Vulnerable
+ * или TechError отменяет остальных (блокирующий код плагина получает interrupt), отмененные плагины в итоге не
+ * участвуют. Из завершившихся результат выбирается так же, как при последовательном запуске:
+ * Vulnerable важнее TechError, TechError важнее Validated, Validated важнее Undefined, при равенстве побеждает
+ * плагин, стоящий в плане раньше. Так ответ не зависит от того, в каком порядке завершились потоки.
+ *
+ * Плагины HIGH и NORMAL выполняются в одном пуле потоков, LOW - в другом, оба ограничены числом ядер. Дешевые
+ * проверки не ждут потока, пока тяжелые плагины LOW раскладывают числа на множители.
+ */
+internal class PluginExecutor(
+    private val parallel: Boolean,
+    /**
+     * Сколько миллисекунд может работать один плагин, 0 - без ограничения
+     */
+    private val budgetMillis: Long = 0,
+    /**
+     * Плагин, не уложившийся в бюджет, дает Undefined, иначе - TechError
+     */
+    private val overBudgetUndefined: Boolean = false,
+    threads: Int = Runtime.getRuntime().availableProcessors(),
+    lowThreads: Int = Runtime.getRuntime().availableProcessors()
+) {
+    private val fastPool = PluginPool("fast", threads)
+    private val lowPool = PluginPool("low", lowThreads)
+
+    val pools get() = listOf(fastPool, lowPool)
+
+    /**
+     * [profile] - профиль запроса, если клиент его включил: в него пишутся время и результат каждого плагина,
+     * а сами плагины видят его как [Profile.current]. [id] - id запроса клиента для событий JFR, см. [Events]
+     */
+    suspend fun run(request: Request, plan: ExecutionPlan, profile: Profile? = null, id: String? = null): Result =
+        execute(request, plan, profile, id).result
+
+    /**
+     * То же, что [run], но с признаком того, что все плагины уложились в бюджет
+     */
+    suspend fun execute(request: Request, plan: ExecutionPlan, profile: Profile? = null, id: String? = null): Outcome {
+        val overBudget = AtomicBoolean()
+        var acc: Result = Undefined()
+        for (tier in plan.tiers) {
+            acc = if (parallel && tier.plugins.size > 1)
+                runParallel(request, tier, profile, id, overBudget)
+            else
+                runSequential(request, tier, acc, profile, id, overBudget)
+
+            if (acc is Vulnerable || acc is TechError)
+                break
+        }
+        return Outcome(acc, acc is Vulnerable || !overBudget.get())
+    }
+
+    private suspend fun runSequential(request: Request, tier: ExecutionPlan.Tier, initial: Result, profile: Profile?, id: String?,
+                                      overBudget: AtomicBoolean): Result {
+        var acc = initial
+        for (i in tier.plugins.indices) {
+            if (acc is Vulnerable || acc is TechError)
+                break
+            acc = runBudgeted(request, tier.plugins[i], tier.metrics[i], profile, id, overBudget)
+        }
+        return acc
+    }
+
+    private suspend fun runParallel(request: Request, tier: ExecutionPlan.Tier, profile: Profile?, id: String?,
+                                    overBudget: AtomicBoolean): Result {
+        val plugins = tier.plugins
+        val results = AtomicReferenceArray<Result>(plugins.size)
+        coroutineScope {
+            plugins.forEachIndexed { i, plugin ->
+                launch {
+                    val result = try {
+                        runBudgeted(request, plugin, tier.metrics[i], profile, id, overBudget)
+                    } catch (e: CancellationException) {
+                        throw e
+                    } catch (e: Exception) {
+                        log.error("Plugin ${plugin.name()} failed", e)
+                        TechError(e.message)
+                    }
+                    results.set(i, result)
+                    if (result is Vulnerable || result is TechError) {
+                        log.info("Plugin {} returned {}, cancelling other plugins of priority {}", plugin.name(), result, tier.priority)
+                        this@coroutineScope.coroutineContext.cancelChildren()
+                    }
+                }
+            }
+        }
+
+        var chosen: Result = Undefined()
+        var chosenRank = -1
+        for (i in plugins.indices) {
+            val result = results.get(i) ?: continue
+            val rank = rank(result)
+            if (rank > chosenRank) {
+                chosen = result
+                chosenRank = rank
+            }
+        }
+        return chosen
+    }
+
+    private suspend fun runBudgeted(request: Request, plugin: Plugin, metrics: PluginMetrics, profile: Profile?, id: String?,
+                                    overBudget: AtomicBoolean): Result {
+        if (budgetMillis <= 0)
+            return runDetached(request, plugin, metrics, profile, id)
+
+        val started = System.nanoTime()
+        return withTimeoutOrNull(budgetMillis) { runDetached(request, plugin, metrics, profile, id) }
+            ?: overBudget(plugin, metrics, profile, started).also { overBudget.set(true) }
+    }
+
+    private fun overBudget(plugin: Plugin, metrics: PluginMetrics, profile: Profile?, started: Long): Result {
+        metrics.overBudget.increment()
+        log.warn("Plugin {} exceeded its time budget of {} ms", plugin.name(), budgetMillis)
+        profile?.addSince(metrics.step, started, "OverBudget")
+        return if (overBudgetUndefined) Undefined() else TechError("Plugin '${plugin.name()}' exceeded its time budget of $budgetMillis ms")
+    }
+
+    /**
+     * Плагин работает в своем потоке, а корутина только ждет результат. Поэтому отмена (дедлайн запроса, бюджет
+     * плагина, уязвимость, найденная соседним плагином) возвращает управление сразу, не дожидаясь плагина:
+     * его поток получает interrupt, а результат, если он все же появится, отбрасывается.
+     */
+    private suspend fun runDetached(request: Request, plugin: Plugin, metrics: PluginMetrics, profile: Profile?, id: String?): Result =
+        suspendCancellableCoroutine { continuation ->
+            val pool = if (plugin.priority() == Priority.LOW) lowPool else fastPool
+            val task = pool.submit {
+                val result = runCatching { runPlugin(request, plugin, metrics, profile, id) }
+                continuation.resumeWith(result)
+            }
+            continuation.invokeOnCancellation { task.cancel(true) }
+        }
+
+    /**
+     * Плагин выполняется целиком в одном потоке, поэтому процессорное время и выделенную память можно снять
+     * по текущему потоку до и после вызова. Профиль и id запроса на это время выставляются потоку
+     */
+    private fun runPlugin(request: Request, plugin: Plugin, metrics: PluginMetrics, profile: Profile?, id: String?): Result {
+        log.info("Running ${plugin.javaClass.canonicalName}:${plugin.name()}")
+        val started = System.nanoTime()
+        val cpuStarted = threadCpuTime()
+        val allocStarted = threadAllocatedBytes()
+        val previous = Profile.activate(profile)
+        val previousId = Events.activate(id)
+        val event = Events.PluginInvocation()
+        event.begin()
+        var result: Result? = null
+        try {
+            result = request.accept(plugin)
+            log.info("Plugin finished with result {}", result)
+            return result
+        } finally {
+            Profile.activate(previous)
+            Events.activate(previousId)
+            event.end()
+            if (event.shouldCommit()) {
+                event.requestId = id
+                event.plugin = plugin.name()
+                event.priority = plugin.priority().name
+                event.result = result?.javaClass?.simpleName ?: "Failed"
+                event.commit()
+            }
+            profile?.addSince(metrics.step, started, result?.let { profileDetail(it) } ?: "Failed")
+            metrics.time.recordSince(started)
+            metrics.priorityTime.recordSince(started)
+            if (cpuStarted >= 0)
+                metrics.cpuNanos.add(threadCpuTime() - cpuStarted)
+            if (allocStarted >= 0)
+                metrics.allocatedBytes.add(threadAllocatedBytes() - allocStarted)
+        }
+    }
+
+    private fun threadCpuTime() = if (threads.isCurrentThreadCpuTimeSupported) threads.currentThreadCpuTime else -1
+
+    private fun threadAllocatedBytes() =
+        if (threads is com.sun.management.ThreadMXBean && threads.isThreadAllocatedMemoryEnabled)
+            threads.getThreadAllocatedBytes(Thread.currentThread().id)
+        else
+            -1
+
+    fun stop() = pools.forEach { it.stop() }
+
+    private fun profileDetail(result: Result) = when (result) {
+        is Vulnerable -> "Vulnerable: ${result.rule}"
+        is TechError -> "TechError: ${result.message}"
+        else -> result.javaClass.simpleName
+    }
+
+    private fun rank(result: Result) = when (result) {
+        is Vulnerable -> 3
+        is TechError -> 2
+        is Validated -> 1
+        is Undefined -> 0
+    }
+}
@@ -0,0 +1,242 @@
+package ru.mtuci
+
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Request
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.OID
+import ru.mtuci.plugins.Request.Params
+import ru.mtuci.plugins.Request.Params.Supplementary
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.security.spec.*
+import java.util.Base64
+
+const val HELLO = "Hello"
+const val PROTOCOL_V2 = "2"
+const val BATCH = "Batch"
+const val STATS = "STATS"
+const val LOOKUP = "Lookup"
+const val VERDICT = "Verdict"
+
+private val log = LoggerFactory.getLogger("Server")
+
+private val DELIMITER = "$".toByteArray(StandardCharsets.UTF_8)
+
+/**
+ * Формат сообщений на соединении. Кодек отвечает и за разметку кадра: разделитель или префикс длины.
+ */
+interface Codec {
+    val name: String
+
+    fun decode(frame: ByteArray): ICommand
+    fun encode(response: Response): ByteArray
+}
+
+/**
+ * Исходный протокол: JSON, затем UTF-8, затем Base64, кадр завершается '$'
+ */
+object JsonCodec : Codec {
+    override val name = "json"
+
+    override fun decode(frame: ByteArray): ICommand {
+        val decoded = String(Base64.getDecoder().decode(frame), StandardCharsets.UTF_8)
+        log.info("Request: $decoded")
+        return Json.decodeFromString<Command>(decoded)
+    }
+
+    override fun encode(response: Response): ByteArray {
+        val serialized = Json.encodeToString(response)
+        log.info("Response: $serialized")
+        return Base64.getEncoder().encode(serialized.toByteArray(StandardCharsets.UTF_8)) + DELIMITER
+    }
+}
+
+/*
+ * Протокол v2 включается командой Hello со значением "2", отправленной в исходном формате. После успешного ответа
+ * обе стороны переходят на кадры вида [int32 длина][тело], все числа big-endian.
+ *
+ * Команда:  int8 операция (1 - проверка), int64 id, int8 вид (0 - OID, 1 - Name, 2 - Params), далее
+ *           для OID и Name - строка, для Params - описание кривой:
+ *           int8 поле (0 - простое, 1 - двоичное), для простого - p, для двоичного - int32 m, int8 n, n * int32 ks,
+ *           затем a, b, x, y, n, int32 h, int8 флаги (1 - seed, 2 - ed, 4 - edFactors) и отмеченные флагами поля:
+ *           байты seed, ed, uint16 количество и множители edFactors.
+ * Пакет:    int8 операция (2 - пакет), int64 id пакета, int32 количество, далее для каждой проверки
+ *           int64 id, int8 вид и описание, как в одиночной команде. Ответы приходят по одному на каждую проверку
+ *           с ее id, в порядке готовности.
+ * Метрики:  int8 операция (3 - метрики), int64 id. Ответ SUCCESS, в info - JSON с метриками сервера.
+ * Дедлайн:  если в операции выставлен старший бит (0x80), сразу за ней идет int32 - сколько миллисекунд клиент
+ *           готов ждать ответ. Для пакета дедлайн относится к каждой проверке.
+ * Флаг 0x40 в операции включает прогрессивный режим: на проверку может прийти предварительный ответ (в типе ответа
+ *           выставлен бит 0x80), а затем окончательный с тем же id.
+ * Флаг 0x20 в операции помечает пакетный (bulk) запрос: в очереди сервера он уступает интерактивным.
+ * Флаг 0x10 в операции запрашивает профиль проверки: в типе ответа выставлен бит 0x40, а после info идет строка
+ *           с профилем.
+ * Ответ:    int64 id (-1, если неизвестен), int8 тип (0 - SUCCESS, 1 - ERROR, 2 - VULNERABLE, 3 - BUSY), строки rule и info.
+ *           Для BUSY в info - через сколько миллисекунд стоит повторить запрос.
+ *
+ * Строка - int32 длина (-1 для null) и UTF-8, байты и большие числа - uint16 длина и содержимое,
+ * числа передаются в дополнительном коде, как их отдает BigInteger.toByteArray().
+ */
+object BinaryCodec : Codec {
+    override val name = "binary"
+
+    const val OP_CHECK: Byte = 1
+    const val OP_BATCH: Byte = 2
+    const val OP_STATS: Byte = 3
+    const val OP_TIMEOUT_FLAG = 0x80
+    const val OP_PROGRESSIVE_FLAG = 0x40
+    const val OP_BULK_FLAG = 0x20
+    const val OP_PROFILE_FLAG = 0x10
+    const val RESPONSE_PROVISIONAL_FLAG = 0x80
+    const val RESPONSE_PROFILE_FLAG = 0x40
+
+    const val KIND_OID: Byte = 0
+    const val KIND_NAME: Byte = 1
+    const val KIND_PARAMS: Byte = 2
+
+    const val FIELD_PRIME: Byte = 0
+    const val FIELD_BINARY: Byte = 1
+
+    const val FLAG_SEED = 1
+    const val FLAG_ED = 2
+    const val FLAG_ED_FACTORS = 4
+
+    val RESPONSE_TYPES = listOf(SUCCESS, ERROR, VULNERABLE, BUSY)
+
+    override fun decode(frame: ByteArray): ICommand {
+        val buffer = ByteBuffer.wrap(frame)
+        val header = buffer.get().toInt()
+        val timeout = if ((header and OP_TIMEOUT_FLAG) != 0) buffer.int.toLong() else null
+        val progressive = (header and OP_PROGRESSIVE_FLAG) != 0
+        val bulk = (header and OP_BULK_FLAG) != 0
+        val profile = (header and OP_PROFILE_FLAG) != 0
+        return when (val op = (header and (OP_TIMEOUT_FLAG or OP_PROGRESSIVE_FLAG or OP_BULK_FLAG or OP_PROFILE_FLAG).inv()).toByte()) {
+            OP_CHECK -> {
+                val id = buffer.long
+                val kind = buffer.get()
+                BinaryCommand(id.toString(), kind, timeout, progressive, bulk, profile) { buffer.getRequest(kind) }
+            }
+            OP_BATCH -> {
+                val id = buffer.long
+                // Границы проверок внутри пакета известны только после разбора предыдущих, поэтому пакет читается сразу
+                val items = List(buffer.int) {
+                    val itemId = buffer.long
+                    val kind = buffer.get()
+                    val request = buffer.getRequest(kind)
+                    BinaryCommand(itemId.toString(), kind, timeout, progressive, bulk, profile) { request }
+                }
+                BinaryControl(id.toString(), BATCH, items)
+            }
+            OP_STATS -> BinaryControl(buffer.long.toString(), STATS)
+            else -> throw RuntimeException("Unknown operation $op")
+        }
+    }
+
+    override fun encode(response: Response): ByteArray {
+        val rule = response.rule?.toByteArray(StandardCharsets.UTF_8)
+        val info = response.info?.toByteArray(StandardCharsets.UTF_8)
+        val profile = response.profile?.toByteArray(StandardCharsets.UTF_8)
+        val size = 8 + 1 + 4 + (rule?.size ?: 0) + 4 + (info?.size ?: 0) + (profile?.let { 4 + it.size } ?: 0)
+        var type = RESPONSE_TYPES.indexOf(response.type)
+        if (response.provisional)
+            type = type or RESPONSE_PROVISIONAL_FLAG
+        if (profile != null)
+            type = type or RESPONSE_PROFILE_FLAG
+        val buffer = ByteBuffer.allocate(4 + size)
+            .putInt(size)
+            .putLong(response.reqId?.toLongOrNull() ?: -1)
+            .put(type.toByte())
+        buffer.putString(rule)
+        buffer.putString(info)
+        if (profile != null)
+            buffer.putString(profile)
+        log.debug("Response: {} {} for {}", response.type, response.info ?: "", response.reqId)
+        return buffer.array()
+    }
+
+    private class BinaryCommand(
+        override val id: String,
+        private val kind: Byte,
+        override val timeout: Long?,
+        override val progressive: Boolean,
+        override val bulk: Boolean,
+        override val profile: Boolean,
+        private val read: () -> Request
+    ) : ICommand {
+        override val type
+            get() = kindName(kind)
+
+        override fun toRequest(): Request = read()
+    }
+
+    /**
+     * Команда, которая не является проверкой кривой: пакет или запрос метрик
+     */
+    private class BinaryControl(override val id: String, override val type: String, override val items: List<ICommand>? = null) : ICommand {
+        override fun toRequest(): Request = throw RuntimeException("Command '$type' is not a curve check")
+    }
+
+    private fun kindName(kind: Byte) = when (kind) {
+        KIND_OID -> "OID"
+        KIND_NAME -> "Name"
+        KIND_PARAMS -> "Params"
+        else -> "Unknown($kind)"
+    }
+
+    private fun ByteBuffer.getRequest(kind: Byte): Request = when (kind) {
+        KIND_OID -> OID(getString())
+        KIND_NAME -> Named(getString())
+        KIND_PARAMS -> getParams()
+        else -> throw RuntimeException("Unknown request type '${kindName(kind)}'")
+    }
+
+    private fun ByteBuffer.getParams(): Params {
+        val field: ECField = when (val type = get()) {
+            FIELD_PRIME -> ECFieldFp(getBigInteger())
+            FIELD_BINARY -> {
+                val m = int
+                val ks = IntArray(get().toInt()) { int }
+                if (ks.isEmpty()) ECFieldF2m(m) else ECFieldF2m(m, ks)
+            }
+            else -> throw RuntimeException("Unsupported curve type $type")
+        }
+        val a = getBigInteger()
+        val b = getBigInteger()
+        val x = getBigInteger()
+        val y = getBigInteger()
+        val n = getBigInteger()
+        val h = int
+        val flags = get().toInt()
+        val seed = if ((flags and FLAG_SEED) != 0) getBytes() else null
+        val ed = if ((flags and FLAG_ED) != 0) getBigInteger() else null
+        val edFactors = if ((flags and FLAG_ED_FACTORS) != 0) List(short.toUShort().toInt()) { getBigInteger() } else null
+        return Params(ECParameterSpec(EllipticCurve(field, a, b, seed), ECPoint(x, y), n, h), Supplementary(ed, edFactors))
+    }
+
+    private fun ByteBuffer.getBytes() = ByteArray(short.toUShort().toInt()).also { get(it) }
+
+    private fun ByteBuffer.getBigInteger() = BigInteger(getBytes())
+
+    private fun ByteBuffer.getString(): String {
+        val length = int
+        if (length < 0)
+            throw RuntimeException("Value is required")
+
+        val value = String(array(), arrayOffset() + position(), length, StandardCharsets.UTF_8)
+        position(position() + length)
+        return value
+    }
+
+    private fun ByteBuffer.putString(bytes: ByteArray?) {
+        if (bytes == null) {
+            putInt(-1)
+            return
+        }
+        putInt(bytes.size)
+        put(bytes)
+    }
+}
@@ -3,7 +3,6 @@ package ru.mtuci
 import kotlinx.coroutines.*
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.decodeFromString
-import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
 import org.slf4j.LoggerFactory
 import ru.mtuci.plugins.*
@@ -11,29 +10,69 @@ import ru.mtuci.plugins.Request.Named
 import ru.mtuci.plugins.Request.OID
 import ru.mtuci.plugins.Request.Params
 import ru.mtuci.plugins.Request.Params.Supplementary
-import ru.mtuci.plugins.Result.TechError
-import ru.mtuci.plugins.Result.Undefined
-import ru.mtuci.plugins.Result.Validated
-import ru.mtuci.plugins.Result.Vulnerable
+import ru.mtuci.engine.*
 import java.math.BigInteger
-import java.net.ServerSocket
-import java.net.Socket
-import java.nio.charset.StandardCharsets
+import java.net.SocketAddress
+import java.net.UnixDomainSocketAddress
+import java.nio.file.Paths
 import java.security.spec.*
-import java.util.Base64
 import java.util.HexFormat
-import java.util.concurrent.atomic.AtomicBoolean
 
 const val CLOSED = "CLOSED"
 const val SUCCESS = "SUCCESS"
 const val ERROR = "ERROR"
 const val VULNERABLE = "VULNERABLE"
+const val BUSY = "BUSY"
 
 private val log = LoggerFactory.getLogger("Server")
 
+/**
+ * Команда клиента независимо от формата, в котором она пришла
+ */
+interface ICommand {
+    val id: String
+    val type: String
+
+    /**
+     * Проверки пакета [BATCH], для обычной команды null
+     */
+    val items: List<ICommand>?
+        get() = null
+
+    /**
+     * Сколько миллисекунд клиент готов ждать ответ, null - без ограничения. Для проверок пакета без своего
+     * значения действует значение пакета
+     */
+    val timeout: Long?
+        get() = null
+
+    /**
+     * Клиент согласен получить предварительный ответ, а окончательный - позже, см. [Response.provisional]
+     */
+    val progressive: Boolean
+        get() = false
+
+    /**
+     * Пакетный запрос (сканирование большого репозитория): уступает очередь интерактивным, см. [Admission]
+     */
+    val bulk: Boolean
+        get() = false
+
+    /**
+     * Вернуть вместе с ответом профиль проверки, см. [Response.profile]
+     */
+    val profile: Boolean
+        get() = false
+
+    fun toRequest(): Request
+}
+
 @Serializable
-class Command(val id: String, val type: String, val value: String) {
-    fun toRequest(): Request = when (type) {
+class Command(override val id: String, override val type: String, val value: String = "",
+              override val items: List<Command>? = null, override val timeout: Long? = null,
+              override val progressive: Boolean = false, override val bulk: Boolean = false,
+              override val profile: Boolean = false) : ICommand {
+    override fun toRequest(): Request = when (type) {
         "OID" -> OID(value)
         "Name" -> Named(value)
         "Params" -> parseParamsJson(value)
@@ -46,107 +85,67 @@ class ParamsRequest(val type: String, val fp: String?, val m: Int?, val ks: IntA
                     val x: String, val y: String, val n: String, val h: Int, val seed: String?,
                     val ed: String?, val edFactors: List<String>?)
 
+/**
+ * [provisional] - предварительный ответ по быстрым плагинам, окончательный придет позже с тем же reqId.
+ * [profile] - профиль проверки, если клиент его запросил: JSON-массив шагов {"name", "us", "detail"}, см. [profileJson]
+ */
 @Serializable
-class Response(val reqId: String?, val type: String, val info: String? = null)
+class Response(val reqId: String?, val type: String, val info: String? = null, val rule: String? = null,
+               val provisional: Boolean = false, val profile: String? = null) {
+    fun withProfile(profile: String?) = if (profile == null) this else Response(reqId, type, info, rule, provisional, profile)
+}
 
-class Server(private val port: Int, private val plugins: IPlugins) {
+/**
+ * Ответ на проверку и, если он предварительный, окончательный ответ, который еще считается
+ */
+internal class Evaluation(val response: Response, val final: Deferred<Response>? = null)
 
-    private val stopped = AtomicBoolean(true)
-    private val socket = ServerSocket(port)
+class Server(private val port: Int, private val plugins: IPlugins, private val config: ServerConfig = ServerConfig()) {
 
-    suspend fun go() = withContext(Dispatchers.IO) {
-        stopped.set(false)
-        log.info("Server is listening on port $port")
-        while (!stopped.get()) {
-            val client = socket.accept()
-            client.soTimeout = 10_000
+    private val engine: IEngine = when (config.engine) {
+        BLOCKING_ENGINE -> BlockingEngine(port, config.maxFrameSize)
+        SELECTOR_ENGINE -> SelectorEngine(port, config.eventLoops, config.maxFrameSize)
+        else -> throw IllegalArgumentException("Unknown engine '${config.engine}'")
+    }
+    // Локальные соединения всегда обслуживает селектор, блокирующий движок построен на ServerSocket
+    private val unixEngine: IEngine? = config.unixSocket?.let {
+        SelectorEngine(UnixDomainSocketAddress.of(it), 1, config.maxFrameSize)
+    }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val checker = Checker(plugins, config, scope)
 
-            if (stopped.get()) {
-                client.getOutputStream().writer().use { it.write(CLOSED) }
-                return@withContext
-            }
+    val cacheStats get() = checker.cacheStats
 
-            launch(Dispatchers.IO) {
-                try {
-                    handleClient(client)
-                }
-                catch (e: Throwable) {
-                    log.error("Cannot handle client", e)
-                }
-                finally {
-                    if (!client.isClosed)
-                        client.close()
-                    
-                    log.info("Client {} finished", client)
-                }
+    suspend fun go() {
+        log.info("Server is listening on port $port, engine is ${config.engine}")
+        config.statsFile?.let { file ->
+            scope.launch { dumpStats(Paths.get(file), config.statsIntervalSeconds, checker::stats) }
+        }
+        val sessions = { transport: Transport ->
+            log.debug("New client {}", transport)
+            Session(transport, scope, this, config.maxInFlight, config.maxQueued)
+        }
+        coroutineScope {
+            unixEngine?.let { unix ->
+                log.info("Server is listening on unix socket {}", config.unixSocket)
+                launch { unix.go(sessions) }
             }
+            engine.go(sessions)
         }
     }
 
-    private fun handleClient(client: Socket) {
-        val out = client.getOutputStream()
-        val input = client.getInputStream()
-        log.debug("New client {}", client)
-        while (!stopped.get() && !client.isClosed) {
-            var command: Command? = null
-            val result: Result = try {
-                val received = input.readUntil("$")
-                log.debug("Received: $received")
-                if (received.isEmpty() || received == "CLOSE") {
-                    log.info("Socket closed")
-                    break
-                }
-
-                val decodedBytes = Base64.getDecoder().decode(received)
-                val decoded = String(decodedBytes, StandardCharsets.UTF_8)
-                log.info("Request: $decoded")
-                command = Json.decodeFromString<Command>(decoded)
-                val request = command.toRequest()
-                val plugins = plugins.list.groupBy { p: Plugin -> p.priority() }.toSortedMap(Comparator.reverseOrder())
-                plugins.keys.fold(Undefined() as Result) { acc, priority ->
-                    when (acc) {
-                        is Vulnerable, is TechError -> acc
-                        is Undefined, is Validated -> plugins[priority]!!.fold(acc) { acc, plugin ->
-                            when (acc) {
-                                is Vulnerable, is TechError -> acc
-                                is Undefined, is Validated -> {
-                                    log.info("Running ${plugin.javaClass.canonicalName}:${plugin.name()}")
-                                    val result = request.accept(plugin)
-                                    log.info("Plugin finished with result {}", result)
-                                    result
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (e: Exception) {
-                log.error("Got error while running plugins", e)
-                TechError(e.message)
-            }
+    fun stats() = checker.stats()
 
-            log.info("Result is {}", result)
-            val response = when (result) {
-                is Validated, is Undefined -> Response(command?.id, SUCCESS)
-                is TechError -> Response(command?.id, ERROR, result.message)
-                is Vulnerable -> Response(command?.id, VULNERABLE, result.message)
-            }
+    internal suspend fun evaluate(command: ICommand, progressive: Boolean, client: Any, bulk: Boolean, profile: Profile? = null) =
+        checker.evaluate(command, progressive, client, bulk, profile)
 
-            try {
-                val serialized = Json.encodeToString(response)
-                log.info("Response: $serialized")
-                val encoded = Base64.getEncoder().encode(serialized.toByteArray(StandardCharsets.UTF_8))
-                out.write(encoded)
-                out.write("$".toByteArray(StandardCharsets.UTF_8))
-                out.flush()
-            } catch (e: Exception) {
-                log.error("Cannot send response", e)
-            }
-        }
-    }
+    internal fun peer(command: Command, from: SocketAddress?) = checker.peer(command, from)
 
     fun stop() {
-        this.stopped.set(true)
-        this.socket.close()
+        checker.stop()
+        engine.stop()
+        unixEngine?.stop()
+        scope.cancel()
     }
 }
 
@@ -0,0 +1,94 @@
+package ru.mtuci
+
+import ru.mtuci.engine.BLOCKING_ENGINE
+
+/**
+ * Настройки сервера. Значения по умолчанию читаются из системных свойств, поэтому их можно переопределить через -D
+ * при запуске, а в тестах - передать явно.
+ */
+class ServerConfig(
+    /**
+     * Движок соединений: blocking (поток на клиента) или selector (несколько event loop на все соединения)
+     */
+    val engine: String = System.getProperty("server.engine", BLOCKING_ENGINE),
+    val eventLoops: Int = Integer.getInteger("server.engine.loops", Runtime.getRuntime().availableProcessors().coerceAtMost(4)),
+    /**
+     * Путь к Unix domain socket, на котором сервер слушает в дополнение к TCP-порту. Для клиентов на той же машине
+     */
+    val unixSocket: String? = System.getProperty("server.unix.socket"),
+    /**
+     * Максимальный размер одного кадра в байтах, соединение с кадром большего размера закрывается
+     */
+    val maxFrameSize: Int = Integer.getInteger("server.frame.max", 1024 * 1024),
+    /**
+     * Сколько команд одного соединения могут выполняться одновременно. Следующие ждут в очереди соединения
+     */
+    val maxInFlight: Int = Integer.getInteger("server.connection.inflight", 16),
+    /**
+     * Сколько команд одного соединения могут ждать очереди на выполнение. Остальные сразу получают ответ BUSY
+     */
+    val maxQueued: Int = Integer.getInteger("server.connection.queue", 1024),
+    /**
+     * Сколько проверок всего сервера могут одновременно выполнять плагины и сколько ждать в очереди.
+     * Результаты из кэша ограничения не занимают
+     */
+    val maxActive: Int = Integer.getInteger("server.active.max", Runtime.getRuntime().availableProcessors() * 2),
+    val maxActiveQueued: Int = Integer.getInteger("server.active.queue", 4096),
+    /**
+     * Запускать плагины одного приоритета одновременно. При false плагины выполняются по одному, как раньше
+     */
+    val parallelTiers: Boolean = System.getProperty("server.plugins.parallel", "true").toBoolean(),
+    /**
+     * Бюджет времени одного плагина в миллисекундах, 0 - без ограничения. Не уложившийся плагин прерывается
+     * и дает TechError, а с server.plugins.timeout.undefined=true - Undefined. Результат проверки, в которой плагин
+     * не уложился, не кэшируется и не сохраняется
+     */
+    val pluginTimeoutMillis: Long = java.lang.Long.getLong("server.plugins.timeout", 0),
+    val pluginTimeoutUndefined: Boolean = System.getProperty("server.plugins.timeout.undefined", "false").toBoolean(),
+    /**
+     * Потоков для плагинов HIGH и NORMAL и отдельно для плагинов LOW. Плагины сверх этого ждут в очереди пула
+     */
+    val pluginThreads: Int = Integer.getInteger("server.plugins.threads", Runtime.getRuntime().availableProcessors()),
+    val lowPluginThreads: Int = Integer.getInteger("server.plugins.threads.low", Runtime.getRuntime().availableProcessors()),
+    /**
+     * Сколько миллисекунд в каталоге плагинов не должно быть изменений, чтобы началась перезагрузка плагинов
+     */
+    val pluginsReloadDelayMillis: Long = java.lang.Long.getLong("server.plugins.reload.delay", 500),
+    /**
+     * Размер кэша итоговых вердиктов, 0 отключает кэш
+     */
+    val cacheSize: Int = Integer.getInteger("server.cache.size", 10_000),
+    val cacheTtlSeconds: Long = java.lang.Long.getLong("server.cache.ttl", 3600),
+    /**
+     * Файл, в котором вердикты переживают перезапуск сервера. Без него вердикты хранятся только в памяти
+     */
+    val storeFile: String? = System.getProperty("server.store"),
+    /**
+     * Соседние серверы (host:port через запятую), у которых перед запуском плагинов LOW спрашивается готовый вердикт
+     * и которым сообщаются новые. Пусто - сервер работает сам по себе
+     */
+    val peers: List<String> = System.getProperty("server.peers", "").split(',').map { it.trim() }.filter { it.isNotEmpty() },
+    /**
+     * Сколько миллисекунд ждать ответа соседей на поиск вердикта, после этого плагины запускаются локально
+     */
+    val peerTimeoutMillis: Long = java.lang.Long.getLong("server.peers.timeout", 200),
+    /**
+     * Процессы-вычислители (host:port через запятую), которым отдаются плагины LOW, см. [ru.mtuci.worker.Worker]
+     */
+    val workers: List<String> = System.getProperty("server.workers", "").split(',').map { it.trim() }.filter { it.isNotEmpty() },
+    /**
+     * Сколько вычислителей сервер запускает сам на этой машине, на портах начиная с server.workers.port
+     */
+    val workersSpawn: Int = Integer.getInteger("server.workers.spawn", 0),
+    val workersPort: Int = Integer.getInteger("server.workers.port", 15600),
+    /**
+     * Объединять одновременные проверки одной и той же кривой от разных клиентов в одно выполнение плагинов
+     */
+    val singleFlight: Boolean = System.getProperty("server.singleflight", "true").toBoolean(),
+    /**
+     * Файл, в который периодически сохраняются метрики (то же, что отдает команда STATS). Без него метрики
+     * доступны только по команде
+     */
+    val statsFile: String? = System.getProperty("server.stats.file"),
+    val statsIntervalSeconds: Long = java.lang.Long.getLong("server.stats.interval", 60),
+)
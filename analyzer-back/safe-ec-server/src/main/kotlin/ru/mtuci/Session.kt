@@ -0,0 +1,220 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import org.slf4j.LoggerFactory
+import ru.mtuci.engine.ConnectionHandler
+import ru.mtuci.engine.Transport
+import ru.mtuci.plugins.Events
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Profile
+import java.nio.charset.StandardCharsets
+
+private val log = LoggerFactory.getLogger("Server")
+
+private val CLOSE = "CLOSE".toByteArray(StandardCharsets.UTF_8)
+
+private val framesDecoded = Metrics.counter("frames.decoded")
+private val framesRejected = Metrics.counter("frames.rejected")
+private val deadlinesExceeded = Metrics.counter("requests.deadlineExceeded")
+/**
+ * Тип запроса приходит от клиента, поэтому счетчики заведены только для известных типов, остальные идут в requests.other
+ */
+private val requestsByType = listOf("OID", "Name", "Params").associateWith { Metrics.counter("requests.$it") }
+private val otherRequests = Metrics.counter("requests.other")
+
+/**
+ * Состояние одного клиентского соединения. Кадры складываются в очередь, чтобы движок никогда не ждал плагины.
+ *
+ * Команды разбираются по порядку, но выполняются параллельно, не более [maxInFlight] одновременно. Ответы
+ * отправляются по мере готовности, клиент сопоставляет их с запросами по reqId. Медленная проверка не задерживает
+ * быстрые запросы, пришедшие следом. Ждать своей очереди могут не больше [maxQueued] команд, на остальные
+ * сразу уходит BUSY.
+ *
+ * В общей очереди сервера соединение - отдельный клиент: место на выполнение плагинов достается соединениям
+ * по очереди, см. [Admission].
+ *
+ * Если команда запросила профиль ([ICommand.profile]), в него попадают разбор кадра, ожидание в очереди соединения,
+ * все, что записал [Checker], и полное время до ответа.
+ */
+internal class Session(
+    private val transport: Transport,
+    scope: CoroutineScope,
+    private val server: Server,
+    maxInFlight: Int,
+    maxQueued: Int
+) : ConnectionHandler {
+    private val inbox = Channel<ByteArray>(Channel.UNLIMITED)
+    private val admission = Admission("connection", maxInFlight, maxQueued)
+
+    @Volatile
+    private var codec: Codec = JsonCodec
+
+    init {
+        scope.launch {
+            try {
+                // Соединение закрывается только после того, как уйдут ответы на все принятые команды
+                coroutineScope {
+                    for (frame in inbox) {
+                        val commands = decode(frame) ?: break
+                        for (command in commands)
+                            launch { command() }
+                    }
+                }
+            } catch (e: Throwable) {
+                log.error("Cannot handle client", e)
+            } finally {
+                transport.close()
+                log.info("Client {} finished", transport)
+            }
+        }
+    }
+
+    override fun onFrame(frame: ByteArray) {
+        inbox.trySend(frame)
+    }
+
+    override fun onEof() {
+        inbox.close()
+    }
+
+    private fun respond(response: ByteArray) {
+        if (transport.isOpen)
+            transport.write(response)
+        else
+            log.warn("Client {} is gone, response dropped", transport)
+    }
+
+    /**
+     * Разбор кадра выполняется сразу, в порядке поступления: после Hello следующие кадры уже читаются новым кодеком.
+     * Возвращает отложенные задачи, которые отправляют ответы (для пакета - по задаче на проверку),
+     * или null, если клиент завершил работу.
+     */
+    private fun decode(frame: ByteArray): List<suspend () -> Unit>? {
+        if (codec === JsonCodec) {
+            if (log.isDebugEnabled)
+                log.debug("Received: {}", String(frame, StandardCharsets.US_ASCII))
+            if (frame.isEmpty() || frame.contentEquals(CLOSE)) {
+                log.info("Socket closed")
+                return null
+            }
+        }
+
+        // Ответ кодируется тем же форматом, в котором пришла команда, даже если за это время прошел Hello
+        val current = codec
+        framesDecoded.increment()
+        val decodeStarted = System.nanoTime()
+        val event = Events.FrameDecode()
+        event.begin()
+        val command = try {
+            current.decode(frame)
+        } catch (e: Exception) {
+            framesRejected.increment()
+            log.error("Cannot decode {} frame of {} bytes from client {}", current.name, frame.size, transport, e)
+            val response = encode(current, Response(null, ERROR, e.message))
+            return listOf { respond(response) }
+        } finally {
+            event.end()
+        }
+        if (event.shouldCommit()) {
+            event.requestId = command.id
+            event.codec = current.name
+            event.size = frame.size
+            event.commit()
+        }
+
+        if (command is Command && command.type == HELLO) {
+            val response = hello(command)
+            return listOf { respond(response) }
+        }
+
+        if (command is Command && (command.type == LOOKUP || command.type == VERDICT))
+            return listOf { respond(encode(current, server.peer(command, transport.remoteAddress))) }
+
+        if (command.type == STATS)
+            return listOf { respond(encode(current, Response(command.id, SUCCESS, server.stats().toString()))) }
+
+        val received = System.nanoTime()
+        val decodeNanos = received - decodeStarted
+        val items = command.items ?: listOf(command)
+        return items.map { item ->
+            (requestsByType[item.type] ?: otherRequests).increment()
+            // Дедлайн отсчитывается от получения кадра, время в очереди соединения тоже входит
+            val deadline = (item.timeout ?: command.timeout)?.let { received + it * 1_000_000 }
+            val progressive = item.progressive || command.progressive
+            val bulk = item.bulk || command.bulk
+            val profile = if (item.profile || command.profile) Profile().apply { add("decode", decodeNanos, null) } else null
+            suspend {
+                val evaluation = evaluate(item, deadline, progressive, bulk, profile)
+                respond(encode(current, evaluation.response.withProfile(profile?.let { profileJson(it, System.nanoTime() - received) })))
+                // Место в очереди соединения уже освобождено, окончательный ответ ждем вне лимитов
+                val final = evaluation.final
+                if (final != null)
+                    respond(encode(current, final.await().withProfile(profile?.let { profileJson(it, System.nanoTime() - received) })))
+            }
+        }
+    }
+
+    private fun encode(codec: Codec, response: Response): ByteArray {
+        val event = Events.FrameEncode()
+        event.begin()
+        val frame = codec.encode(response)
+        event.end()
+        if (event.shouldCommit()) {
+            event.requestId = response.reqId
+            event.codec = codec.name
+            event.size = frame.size
+            event.commit()
+        }
+        return frame
+    }
+
+    /**
+     * Когда клиент перестает ждать, проверка отменяется: плагины получают interrupt, а ответ сообщает об истекшем
+     * дедлайне. Если этой же кривой ждут другие клиенты, общее выполнение продолжается для них
+     */
+    private suspend fun evaluate(command: ICommand, deadline: Long?, progressive: Boolean, bulk: Boolean, profile: Profile?): Evaluation {
+        val remaining = deadline?.let { (it - System.nanoTime()) / 1_000_000 }
+        if (remaining != null && remaining <= 0)
+            return deadlineExceeded(command)
+
+        val queued = System.nanoTime()
+        val run: suspend () -> Evaluation = {
+            profile?.addSince("queue.connection", queued, null)
+            server.evaluate(command, progressive, this@Session, bulk, profile)
+        }
+        return try {
+            if (remaining == null)
+                admission.run(bulk = bulk, block = run)
+            else
+                withTimeoutOrNull(remaining) { admission.run(bulk = bulk, block = run) } ?: deadlineExceeded(command)
+        } catch (e: BusyException) {
+            log.warn("Client {} exceeded its queue, request {} rejected", transport, command.id)
+            Evaluation(Response(command.id, BUSY, e.retryAfterMillis.toString()))
+        }
+    }
+
+    private fun deadlineExceeded(command: ICommand): Evaluation {
+        deadlinesExceeded.increment()
+        log.warn("Deadline exceeded for request {} of client {}", command.id, transport)
+        return Evaluation(Response(command.id, ERROR, "Deadline exceeded"))
+    }
+
+    /**
+     * Согласование протокола. Ответ уходит еще в исходном формате, а следующие кадры читаются уже в новом,
+     * поэтому клиент не должен ничего отправлять, пока не получит ответ на Hello.
+     */
+    private fun hello(command: Command): ByteArray {
+        if (command.value != PROTOCOL_V2)
+            return JsonCodec.encode(Response(command.id, ERROR, "Unsupported protocol version ${command.value}"))
+
+        val response = JsonCodec.encode(Response(command.id, SUCCESS, PROTOCOL_V2))
+        codec = BinaryCodec
+        transport.useLengthPrefixedFrames()
+        log.info("Client {} switched to protocol v{}", transport, PROTOCOL_V2)
+        return response
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Объединяет одновременные вычисления с одинаковым ключом: первый вызов запускает [block], остальные до его
+ * завершения ждут тот же результат. После завершения ключ освобождается, повторный вызов считает заново.
+ *
+ * Вычисление выполняется в [scope], а не в корутине первого вызвавшего, поэтому отмена его ожидания
+ * не отменяет проверку для остальных. Когда ждать перестают все, вычисление отменяется - результат больше никому
+ * не нужен.
+ */
+internal class SingleFlight<K : Any, V>(private val scope: CoroutineScope) {
+    private class Flight<V>(val deferred: Deferred<V>) {
+        private val waiters = AtomicInteger(1)
+
+        /**
+         * false, если все ожидавшие уже ушли и вычисление отменяется
+         */
+        fun join(): Boolean {
+            while (true) {
+                val current = waiters.get()
+                if (current == 0)
+                    return false
+                if (waiters.compareAndSet(current, current + 1))
+                    return true
+            }
+        }
+
+        suspend fun await(): V = try {
+            deferred.await()
+        } finally {
+            if (waiters.decrementAndGet() == 0)
+                deferred.cancel()
+        }
+    }
+
+    private val flights = ConcurrentHashMap<K, Flight<V>>()
+    private val coalesced = AtomicLong()
+
+    /**
+     * Сколько вызовов получили результат чужого вычисления
+     */
+    val coalescedCount get() = coalesced.get()
+
+    val inFlight get() = flights.size
+
+    suspend fun run(key: K, block: suspend () -> V): V {
+        while (true) {
+            val existing = flights[key]
+            if (existing != null) {
+                if (existing.join()) {
+                    coalesced.incrementAndGet()
+                    return existing.await()
+                }
+                flights.remove(key, existing)
+                continue
+            }
+
+            val flight = Flight(scope.async(start = CoroutineStart.LAZY) { block() })
+            if (flights.putIfAbsent(key, flight) != null) {
+                flight.deferred.cancel()
+                continue
+            }
+
+            flight.deferred.invokeOnCompletion { flights.remove(key, flight) }
+            flight.deferred.start()
+            return flight.await()
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.mtuci
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.serialization.json.*
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Profile
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import kotlin.coroutines.coroutineContext
+
+private val log = LoggerFactory.getLogger("Server")
+
+private const val HITS = ".hits"
+private const val MISSES = ".misses"
+
+/**
+ * Метрики реестра [Metrics] и состояние компонентов сервера одним JSON-объектом. Для каждой пары счетчиков
+ * x.hits и x.misses дополнительно считается x.hitRatio.
+ */
+internal fun statsJson(cache: VerdictCacheStats, coalesced: Long, inFlight: Int, active: Int, queued: Int,
+                       pools: List<PluginPool> = emptyList()): JsonObject = buildJsonObject {
+    val snapshot = Metrics.snapshot()
+    snapshot.forEach { (name, value) -> put(name, value.toJson()) }
+
+    @Suppress("UNCHECKED_CAST")
+    val counters = snapshot["counters"] as Map<String, Long>
+    putJsonObject("hitRatios") {
+        put("verdictCache", cache.hitRatio)
+        counters.keys.filter { it.endsWith(HITS) }.forEach { name ->
+            val prefix = name.removeSuffix(HITS)
+            val hits = counters.getValue(name)
+            val total = hits + (counters["$prefix$MISSES"] ?: 0)
+            put(prefix, if (total == 0L) 0.0 else hits.toDouble() / total)
+        }
+    }
+    putJsonObject("verdictCache") {
+        put("hits", cache.hits)
+        put("misses", cache.misses)
+        put("evictions", cache.evictions)
+        put("flushes", cache.flushes)
+        put("size", cache.size)
+    }
+    putJsonObject("singleFlight") {
+        put("coalesced", coalesced)
+        put("inFlight", inFlight)
+    }
+    putJsonObject("admission") {
+        put("active", active)
+        put("queued", queued)
+    }
+    putJsonObject("pools") {
+        for (pool in pools) {
+            putJsonObject(pool.name) {
+                put("threads", pool.threads)
+                put("active", pool.active)
+                put("queued", pool.queued)
+                put("utilisation", pool.utilisation)
+                put("completed", pool.completed)
+            }
+        }
+    }
+}
+
+/**
+ * Профиль проверки для [Response.profile]: шаги в порядке записи, последний - total, полное время от получения
+ * кадра до ответа. Длительности в микросекундах
+ */
+internal fun profileJson(profile: Profile, totalNanos: Long): String = buildJsonArray {
+    for (entry in profile.entries())
+        addProfileEntry(entry.name, entry.nanos, entry.detail)
+    addProfileEntry("total", totalNanos, null)
+}.toString()
+
+private fun JsonArrayBuilder.addProfileEntry(name: String, nanos: Long, detail: String?) = addJsonObject {
+    put("name", name)
+    put("us", nanos / 1000)
+    detail?.let { put("detail", it) }
+}
+
+/**
+ * Раз в [intervalSeconds] перезаписывает [file] текущими метриками. Файл заменяется целиком, поэтому читатель
+ * никогда не увидит его наполовину записанным.
+ */
+internal suspend fun dumpStats(file: Path, intervalSeconds: Long, stats: () -> JsonObject) {
+    log.info("Dumping stats to {} every {} s", file, intervalSeconds)
+    val temp = file.resolveSibling("${file.fileName}.tmp")
+    while (coroutineContext.isActive) {
+        delay(intervalSeconds * 1000)
+        try {
+            file.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+            Files.writeString(temp, stats().toString())
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: Exception) {
+            log.error("Cannot dump stats to {}", file, e)
+        }
+    }
+}
+
+private fun Any?.toJson(): JsonElement = when (this) {
+    null -> JsonNull
+    is Number -> JsonPrimitive(this)
+    is String -> JsonPrimitive(this)
+    is Boolean -> JsonPrimitive(this)
+    is Map<*, *> -> JsonObject(entries.associate { (key, value) -> key.toString() to value.toJson() })
+    else -> JsonPrimitive(toString())
+}
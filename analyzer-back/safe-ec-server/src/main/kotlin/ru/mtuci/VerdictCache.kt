@@ -0,0 +1,95 @@
+package ru.mtuci
+
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import java.util.concurrent.atomic.AtomicLong
+
+private val log = LoggerFactory.getLogger("Server")
+
+class VerdictCacheStats(val hits: Long, val misses: Long, val evictions: Long, val flushes: Long, val size: Int) {
+    val hitRatio get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+
+    override fun toString() = "hits=$hits, misses=$misses, hitRatio=${"%.3f".format(hitRatio)}, evictions=$evictions, flushes=$flushes, size=$size"
+}
+
+/**
+ * Итоговые вердикты всей цепочки плагинов по ключу [CanonicalRequest.key]. Ограничен по размеру (вытесняется
+ * давно не запрошенное) и по времени жизни записи.
+ *
+ * Вердикт действителен только для того набора плагинов, с которым он был получен. Кэш помнит план, под который
+ * заполнен, и очищается, как только в запросе появляется другой план, то есть после загрузки или выгрузки jar.
+ * Результат, посчитанный по устаревшему плану, в кэш не попадает. TechError не кэшируется - ошибка может быть временной.
+ */
+internal class VerdictCache(
+    private val maxSize: Int,
+    private val ttlMillis: Long,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private class Verdict(val result: Result, val expiresAt: Long)
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val evictions = AtomicLong()
+    private val flushes = AtomicLong()
+
+    private val entries = object : LinkedHashMap<Any, Verdict>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Any, Verdict>?): Boolean {
+            val evict = size > maxSize
+            if (evict)
+                evictions.incrementAndGet()
+            return evict
+        }
+    }
+    private var plan: ExecutionPlan? = null
+
+    val enabled get() = maxSize > 0
+
+    fun get(key: Any, plan: ExecutionPlan): Result? {
+        if (!enabled)
+            return null
+
+        val entry = synchronized(entries) {
+            if (this.plan !== plan) {
+                if (this.plan != null) {
+                    flushes.incrementAndGet()
+                    log.info("Plugins changed, verdict cache flushed ({} entries)", entries.size)
+                }
+                entries.clear()
+                this.plan = plan
+            }
+
+            entries[key]?.also {
+                if (it.expiresAt <= clock()) {
+                    entries.remove(key)
+                    return@synchronized null
+                }
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet()
+            return null
+        }
+        hits.incrementAndGet()
+        return entry.result
+    }
+
+    fun put(key: Any, plan: ExecutionPlan, result: Result) {
+        if (!enabled || result is TechError)
+            return
+
+        synchronized(entries) {
+            if (this.plan === plan)
+                entries[key] = Verdict(result, clock() + ttlMillis)
+        }
+    }
+
+    fun clear() = synchronized(entries) {
+        entries.clear()
+        flushes.incrementAndGet()
+    }
+
+    val stats get() = VerdictCacheStats(hits.get(), misses.get(), evictions.get(), flushes.get(), synchronized(entries) { entries.size })
+}
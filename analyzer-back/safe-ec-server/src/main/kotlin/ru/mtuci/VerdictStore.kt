@@ -0,0 +1,306 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.slf4j.LoggerFactory
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import ru.mtuci.plugins.Result.Undefined
+import ru.mtuci.plugins.Result.Validated
+import ru.mtuci.plugins.Result.Vulnerable
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.zip.CRC32
+
+private val log = LoggerFactory.getLogger("Server")
+
+private const val TYPE_VALIDATED: Byte = 0
+private const val TYPE_UNDEFINED: Byte = 1
+private const val TYPE_VULNERABLE: Byte = 2
+
+/**
+ * Сколько устаревших записей должно накопиться в журнале, прежде чем его стоит сжимать
+ */
+private const val MIN_GARBAGE = 1024
+
+/**
+ * Наибольшая запись журнала. Запись длиннее при загрузке приняла бы за испорченный хвост и отрезала бы все после нее
+ */
+private const val MAX_RECORD = 64 * 1024
+
+/**
+ * Сколько вердиктов может ждать записи на диск, дальше новые не сохраняются
+ */
+private const val MAX_PENDING = 10_000
+
+/**
+ * Итоговые вердикты на диске, чтобы после перезапуска сервер не считал заново то, что уже проверял.
+ *
+ * Журнал только дописывается: запись - `[int32 длина][int32 CRC32][отпечаток плагинов][ключ кривой][вердикт]`.
+ * Оборванная или испорченная запись в конце (сервер упал посреди записи) при загрузке отрезается. Вердикт
+ * действителен только при том же отпечатке набора плагинов ([ru.mtuci.plugins.ExecutionPlan.fingerprint]):
+ * записи других наборов при загрузке пропускаются, а при сжатии удаляются из файла.
+ *
+ * Сохраняются только ключи кривых ([CurveId] и кривых с seed): имена и OID, которые сервер не узнал, присылает
+ * клиент, и держать их на диске вечно незачем.
+ *
+ * Журнал читается в фоне при старте, до окончания загрузки [get] ничего не находит. Индекс - в памяти, по нему
+ * отдается вердикт без обращения к диску. [put] только ставит вердикт в очередь: в журнал пишет фоновый писатель,
+ * он же, когда устаревших записей становится больше живых, переписывает журнал одними живыми записями и атомарно
+ * подменяет старый. Поток запроса не ждет ни загрузки, ни диска, ни сжатия.
+ */
+internal class VerdictStore(private val file: Path, private val fingerprint: () -> String, private val scope: CoroutineScope) {
+    private class Verdict(val fingerprint: String, val result: Result)
+
+    private class Write(val key: String, val fingerprint: String, val result: Result)
+
+    private val index = ConcurrentHashMap<String, Verdict>()
+    private val loaded = CountDownLatch(1)
+    private val lock = Any()
+    private var channel: FileChannel? = null
+    /**
+     * Записей в журнале, включая перезаписанные и записи других наборов плагинов
+     */
+    private var records = 0
+    /**
+     * Отпечаток, с которым сейчас работает сервер. Записи остальных из индекса удаляются
+     */
+    private var current: String? = null
+    private val pending = Channel<Write>(MAX_PENDING)
+
+    private val hits = Metrics.counter("store.hits")
+    private val misses = Metrics.counter("store.misses")
+    private val appends = Metrics.counter("store.appends")
+    private val compactions = Metrics.counter("store.compactions")
+    private val dropped = Metrics.counter("store.dropped")
+
+    private val writer = scope.launch {
+        load()
+        for (write in pending)
+            append(write)
+    }
+
+    val size get() = index.size
+
+    fun awaitLoaded() = loaded.await()
+
+    fun get(key: String, fingerprint: String): Result? {
+        if (loaded.count > 0) {
+            misses.increment()
+            return null
+        }
+
+        val verdict = index[key]?.takeIf { it.fingerprint == fingerprint }
+        if (verdict == null) {
+            misses.increment()
+            return null
+        }
+        hits.increment()
+        return verdict.result
+    }
+
+    /**
+     * Ставит вердикт в очередь на запись в журнал. Если очередь полна, вердикт не сохраняется
+     */
+    fun put(key: String, fingerprint: String, result: Result) {
+        if (result is TechError || !key.startsWith("c:") && !key.startsWith("s:"))
+            return
+
+        if (!pending.trySend(Write(key, fingerprint, result)).isSuccess)
+            dropped.increment()
+    }
+
+    private fun append(write: Write) {
+        synchronized(lock) {
+            val channel = channel ?: return
+            val record = try {
+                encode(write.fingerprint, write.key, write.result)
+            } catch (e: IOException) {
+                log.warn("Cannot store verdict of {}", write.key.take(100), e)
+                return
+            }
+            if (write.fingerprint != current) {
+                log.info("Plugins changed, verdicts of the previous plugin set are discarded")
+                current = write.fingerprint
+                index.entries.removeIf { it.value.fingerprint != write.fingerprint }
+            }
+            try {
+                channel.write(ByteBuffer.wrap(record))
+            } catch (e: IOException) {
+                log.error("Cannot write verdict to {}", file, e)
+                return
+            }
+            records++
+            index[write.key] = Verdict(write.fingerprint, write.result)
+        }
+        appends.increment()
+        compactIfNeeded()
+    }
+
+    private fun load() {
+        val started = System.nanoTime()
+        val current = fingerprint()
+        var skipped = 0
+        synchronized(lock) {
+            this.current = current
+            try {
+                file.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+                var valid = 0L
+                if (Files.exists(file)) {
+                    DataInputStream(BufferedInputStream(Files.newInputStream(file))).use { input ->
+                        while (true) {
+                            val payload = readRecord(input) ?: break
+                            valid += 8 + payload.size
+                            records++
+                            val (fingerprint, key, result) = decode(payload)
+                            if (fingerprint == current)
+                                index[key] = Verdict(fingerprint, result)
+                            else
+                                skipped++
+                        }
+                    }
+                }
+
+                val channel = FileChannel.open(file, CREATE, WRITE)
+                if (channel.size() > valid) {
+                    log.warn("Verdict store {} has a broken tail, truncated {} bytes", file, channel.size() - valid)
+                    channel.truncate(valid)
+                }
+                channel.position(valid)
+                this.channel = channel
+            } catch (e: IOException) {
+                log.error("Cannot load verdict store {}, verdicts will not be persisted", file, e)
+            } finally {
+                loaded.countDown()
+            }
+        }
+        log.info("Loaded {} verdicts from {} in {} ms, skipped {} of other plugin sets", index.size, file,
+            (System.nanoTime() - started) / 1_000_000, skipped)
+        compactIfNeeded()
+    }
+
+    private fun compactIfNeeded() {
+        val needed = synchronized(lock) {
+            val garbage = records - index.size
+            garbage >= MIN_GARBAGE && garbage > index.size
+        }
+        if (needed)
+            compact()
+    }
+
+    /**
+     * Переписывает журнал живыми записями текущего набора плагинов. Запись в журнал на это время ждет
+     */
+    fun compact() {
+        val temp = file.resolveSibling("${file.fileName}.tmp")
+        synchronized(lock) {
+            val old = channel ?: return
+            try {
+                DataOutputStream(BufferedOutputStream(Files.newOutputStream(temp))).use { out ->
+                    index.forEach { (key, verdict) -> out.write(encode(verdict.fingerprint, key, verdict.result)) }
+                }
+                FileChannel.open(temp, WRITE).use { it.force(true) }
+                old.close()
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                channel = FileChannel.open(file, WRITE, APPEND)
+                log.info("Compacted verdict store {}: {} verdicts, {} stale records dropped", file, index.size, records - index.size)
+                records = index.size
+                compactions.increment()
+            } catch (e: IOException) {
+                log.error("Cannot compact verdict store {}", file, e)
+                if (!old.isOpen)
+                    channel = try {
+                        FileChannel.open(file, WRITE, APPEND)
+                    } catch (e: IOException) {
+                        null
+                    }
+            }
+        }
+    }
+
+    /**
+     * Дописывает вердикты из очереди и закрывает журнал
+     */
+    fun close() {
+        pending.close()
+        runBlocking { writer.join() }
+        synchronized(lock) {
+            channel?.force(true)
+            channel?.close()
+            channel = null
+        }
+    }
+
+    private fun readRecord(input: DataInputStream): ByteArray? = try {
+        val size = input.readInt()
+        val crc = input.readInt()
+        if (size < 0 || size > MAX_RECORD)
+            null
+        else
+            ByteArray(size).also { input.readFully(it) }.takeIf { crc32(it) == crc }
+    } catch (e: EOFException) {
+        null
+    }
+
+    /**
+     * Бросает IOException, если запись не помещается в [MAX_RECORD] (writeUTF и сам не пишет строки длиннее 64 КБ)
+     */
+    private fun encode(fingerprint: String, key: String, result: Result): ByteArray {
+        val payload = ByteArrayOutputStream()
+        DataOutputStream(payload).use { out ->
+            out.writeUTF(fingerprint)
+            out.writeUTF(key)
+            when (result) {
+                is Validated -> out.writeByte(TYPE_VALIDATED.toInt())
+                is Undefined -> out.writeByte(TYPE_UNDEFINED.toInt())
+                is Vulnerable -> {
+                    out.writeByte(TYPE_VULNERABLE.toInt())
+                    out.writeUTF(result.rule ?: "")
+                    out.writeUTF(result.message ?: "")
+                }
+                is TechError -> throw IllegalArgumentException("TechError is not stored")
+            }
+        }
+        val bytes = payload.toByteArray()
+        if (bytes.size > MAX_RECORD)
+            throw IOException("Verdict record of ${bytes.size} bytes is too large")
+        return ByteBuffer.allocate(8 + bytes.size)
+            .putInt(bytes.size)
+            .putInt(crc32(bytes))
+            .put(bytes)
+            .array()
+    }
+
+    private fun decode(payload: ByteArray): Triple<String, String, Result> {
+        val input = DataInputStream(payload.inputStream())
+        val fingerprint = input.readUTF()
+        val key = input.readUTF()
+        val result = when (val type = input.readByte()) {
+            TYPE_VALIDATED -> Validated()
+            TYPE_UNDEFINED -> Undefined()
+            TYPE_VULNERABLE -> Vulnerable(input.readUTF().ifEmpty { null }, input.readUTF())
+            else -> throw IOException("Unknown verdict type $type")
+        }
+        return Triple(fingerprint, key, result)
+    }
+
+    private fun crc32(bytes: ByteArray) = CRC32().apply { update(bytes) }.value.toInt()
+}
@@ -0,0 +1,99 @@
+package ru.mtuci.engine
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.slf4j.LoggerFactory
+import ru.mtuci.CLOSED
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Исходный движок: блокирующий accept и по одному потоку Dispatchers.IO на каждого клиента
+ */
+class BlockingEngine(port: Int, private val maxFrameSize: Int) : IEngine {
+    private val log = LoggerFactory.getLogger(javaClass)
+
+    private val stopped = AtomicBoolean(true)
+    private val socket = ServerSocket(port)
+
+    override suspend fun go(handlers: (Transport) -> ConnectionHandler) = withContext(Dispatchers.IO) {
+        stopped.set(false)
+        while (!stopped.get()) {
+            val client = socket.accept()
+            client.soTimeout = 10_000
+
+            if (stopped.get()) {
+                client.getOutputStream().writer().use { it.write(CLOSED) }
+                return@withContext
+            }
+
+            launch(Dispatchers.IO) {
+                val transport = SocketTransport(client, FrameDecoder(maxFrameSize))
+                val handler = handlers(transport)
+                try {
+                    read(client, transport.decoder, handler)
+                } catch (e: Throwable) {
+                    if (!client.isClosed)
+                        log.error("Cannot handle client", e)
+                    transport.close()
+                    handler.onEof()
+                }
+            }
+        }
+    }
+
+    private fun read(client: Socket, decoder: FrameDecoder, handler: ConnectionHandler) {
+        val input = client.getInputStream()
+        val buffer = ByteBuffer.allocate(8192)
+        log.debug("New client {}", client)
+        while (!stopped.get() && !client.isClosed) {
+            val read = try {
+                input.read(buffer.array())
+            } catch (e: SocketTimeoutException) {
+                continue
+            }
+
+            if (read == -1) {
+                decoder.finish(handler::onFrame)
+                handler.onEof()
+                return
+            }
+
+            buffer.position(0).limit(read)
+            decoder.decode(buffer, handler::onFrame)
+        }
+    }
+
+    override fun stop() {
+        this.stopped.set(true)
+        this.socket.close()
+    }
+
+    private class SocketTransport(private val client: Socket, val decoder: FrameDecoder) : Transport {
+        private val out = client.getOutputStream()
+
+        override val isOpen get() = !client.isClosed
+        override val remoteAddress: SocketAddress? get() = client.remoteSocketAddress
+
+        override fun write(bytes: ByteArray) = synchronized(out) {
+            out.write(bytes)
+            out.flush()
+        }
+
+        override fun useLengthPrefixedFrames() {
+            decoder.lengthPrefixed = true
+        }
+
+        override fun close() {
+            if (!client.isClosed)
+                client.close()
+        }
+
+        override fun toString() = client.toString()
+    }
+}
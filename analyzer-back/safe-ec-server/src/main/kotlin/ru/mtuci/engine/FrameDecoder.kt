@@ -0,0 +1,125 @@
+package ru.mtuci.engine
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+private const val DELIMITER = '$'.code.toByte()
+private const val INITIAL_CAPACITY = 1024
+private const val RETAINED_CAPACITY = 64 * 1024
+
+class FrameTooLargeException(limit: Int) : IOException("Frame exceeds $limit bytes")
+
+/**
+ * Нарезает входящий поток на кадры, разделенные '$'. Данные приходят порциями в буфере, разделитель ищется
+ * по массиву целиком, а не побайтовым чтением из сокета. Накопленный кадр не может превысить [maxFrameSize],
+ * иначе бросается [FrameTooLargeException] и соединение нужно закрывать.
+ *
+ * После согласования протокола v2 кадры размечаются не разделителем, а префиксом длины, см. [lengthPrefixed].
+ *
+ * Экземпляр не потокобезопасен, на каждое соединение нужен свой.
+ */
+class FrameDecoder(private val maxFrameSize: Int) {
+    private var frame = ByteArray(INITIAL_CAPACITY.coerceAtMost(maxFrameSize))
+    private var size = 0
+    private var expected = -1
+
+    /**
+     * Кадры вида [int32 длина][тело]. Переключается один раз, пока клиент ждет ответа на Hello,
+     * поэтому в буфере в этот момент нет данных.
+     */
+    @Volatile
+    var lengthPrefixed = false
+
+    /**
+     * Разбирает все данные буфера между position и limit. Для каждого завершенного кадра вызывается [onFrame],
+     * незавершенный хвост сохраняется до следующей порции.
+     */
+    fun decode(input: ByteBuffer, onFrame: (ByteArray) -> Unit) {
+        require(input.hasArray()) { "Only heap buffers are supported" }
+
+        val array = input.array()
+        val limit = input.arrayOffset() + input.limit()
+        var pos = input.arrayOffset() + input.position()
+        input.position(input.limit())
+        if (lengthPrefixed) {
+            decodePrefixed(array, pos, limit, onFrame)
+            return
+        }
+
+        var runStart = pos
+        while (pos < limit) {
+            val next = array[pos]
+            // Нулевые байты пропускаются, как это делалось и при побайтовом чтении
+            if (next == DELIMITER || next == 0.toByte()) {
+                append(array, runStart, pos - runStart)
+                if (next == DELIMITER)
+                    emit(onFrame)
+                runStart = pos + 1
+            }
+            pos++
+        }
+        append(array, runStart, limit - runStart)
+    }
+
+    private fun decodePrefixed(array: ByteArray, offset: Int, limit: Int, onFrame: (ByteArray) -> Unit) {
+        var pos = offset
+        while (pos < limit) {
+            if (expected < 0) {
+                val length = (4 - size).coerceAtMost(limit - pos)
+                append(array, pos, length)
+                pos += length
+                if (size < 4)
+                    return
+
+                expected = ByteBuffer.wrap(frame, 0, 4).int
+                size = 0
+                if (expected < 0 || expected > maxFrameSize) {
+                    expected = -1
+                    throw FrameTooLargeException(maxFrameSize)
+                }
+            }
+
+            val length = (expected - size).coerceAtMost(limit - pos)
+            append(array, pos, length)
+            pos += length
+            if (size == expected) {
+                expected = -1
+                emit(onFrame)
+            }
+        }
+    }
+
+    /**
+     * Поток закончился: остаток без разделителя отдается как последний кадр
+     */
+    fun finish(onFrame: (ByteArray) -> Unit) {
+        if (size > 0 && !lengthPrefixed)
+            emit(onFrame)
+    }
+
+    private fun append(src: ByteArray, offset: Int, length: Int) {
+        if (length == 0)
+            return
+
+        val required = size + length
+        if (required > maxFrameSize) {
+            size = 0
+            throw FrameTooLargeException(maxFrameSize)
+        }
+
+        if (required > frame.size)
+            frame = frame.copyOf(Integer.highestOneBit(required - 1).shl(1).coerceIn(required, maxFrameSize))
+
+        System.arraycopy(src, offset, frame, size, length)
+        size = required
+    }
+
+    private fun emit(onFrame: (ByteArray) -> Unit) {
+        val result = frame.copyOf(size)
+        size = 0
+        // Не держим большой буфер на простаивающем соединении
+        if (frame.size > RETAINED_CAPACITY)
+            frame = ByteArray(INITIAL_CAPACITY)
+        onFrame(result)
+    }
+}
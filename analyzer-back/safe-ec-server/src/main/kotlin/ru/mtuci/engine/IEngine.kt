@@ -0,0 +1,47 @@
+package ru.mtuci.engine
+
+import java.net.SocketAddress
+
+/**
+ * Транспортный уровень сервера: принимает соединения, нарезает входящий поток на кадры и отдает их обработчику.
+ * Логика протокола в движок не попадает, поэтому реализации можно свободно менять и сравнивать под нагрузкой.
+ */
+interface IEngine {
+    suspend fun go(handlers: (Transport) -> ConnectionHandler)
+    fun stop()
+}
+
+interface Transport {
+    val isOpen: Boolean
+
+    /**
+     * Адрес клиента: [java.net.InetSocketAddress] для TCP, [java.net.UnixDomainSocketAddress] для локального сокета
+     */
+    val remoteAddress: SocketAddress?
+
+    /**
+     * Потокобезопасная отправка уже закодированного ответа
+     */
+    fun write(bytes: ByteArray)
+    fun close()
+
+    /**
+     * Переключает разбор входящих кадров на префикс длины (протокол v2)
+     */
+    fun useLengthPrefixedFrames()
+}
+
+interface ConnectionHandler {
+    /**
+     * Очередной кадр без завершающего разделителя
+     */
+    fun onFrame(frame: ByteArray)
+
+    /**
+     * Клиент закрыл соединение со своей стороны, новых кадров не будет
+     */
+    fun onEof()
+}
+
+const val BLOCKING_ENGINE = "blocking"
+const val SELECTOR_ENGINE = "selector"
@@ -0,0 +1,213 @@
+package ru.mtuci.engine
+
+import kotlinx.coroutines.CompletableDeferred
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.net.StandardProtocolFamily
+import java.net.UnixDomainSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Движок на неблокирующих каналах: небольшое число потоков с селекторами обслуживает все соединения,
+ * поток на сокет не выделяется. Обработка кадров уходит в корутины сервера, event loop только читает и пишет.
+ *
+ * Кроме TCP-порта умеет слушать Unix domain socket ([UnixDomainSocketAddress]): файл сокета создается при старте
+ * и удаляется при остановке.
+ */
+class SelectorEngine(private val address: SocketAddress, loops: Int, private val maxFrameSize: Int) : IEngine {
+    constructor(port: Int, loops: Int, maxFrameSize: Int) : this(InetSocketAddress(port), loops, maxFrameSize)
+
+    private val log = LoggerFactory.getLogger(javaClass)
+
+    private val stopped = AtomicBoolean(true)
+    private val finished = CompletableDeferred<Unit>()
+    private val serverChannel = open(address)
+    private val loops = List(loops.coerceAtLeast(1)) { EventLoop(it) }
+    private val nextLoop = AtomicInteger()
+
+    private lateinit var handlers: (Transport) -> ConnectionHandler
+
+    override suspend fun go(handlers: (Transport) -> ConnectionHandler) {
+        this.handlers = handlers
+        stopped.set(false)
+        serverChannel.configureBlocking(false)
+        val acceptor = loops[0]
+        acceptor.execute { serverChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT) }
+        loops.forEach { it.start() }
+        log.info("Started {} event loops", loops.size)
+        finished.await()
+    }
+
+    override fun stop() {
+        stopped.set(true)
+        loops.forEach { it.selector.wakeup() }
+        serverChannel.close()
+        if (address is UnixDomainSocketAddress)
+            Files.deleteIfExists(address.path)
+        finished.complete(Unit)
+    }
+
+    private fun open(address: SocketAddress): ServerSocketChannel {
+        if (address !is UnixDomainSocketAddress)
+            return ServerSocketChannel.open().bind(address, 1024)
+
+        // Файл мог остаться от сервера, который не успел остановиться
+        Files.deleteIfExists(address.path)
+        return ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(address, 1024)
+    }
+
+    private fun accept() {
+        while (true) {
+            val channel = serverChannel.accept() ?: return
+            channel.configureBlocking(false)
+            val loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.size)]
+            loop.execute {
+                val connection = Connection(channel, loop)
+                connection.key = channel.register(loop.selector, SelectionKey.OP_READ, connection)
+                connection.handler = handlers(connection)
+                log.debug("New client {}", connection)
+            }
+        }
+    }
+
+    private inner class EventLoop(index: Int) : Thread("safe-ec-loop-$index") {
+        val selector: Selector = Selector.open()
+        private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+
+        init {
+            isDaemon = true
+        }
+
+        fun execute(task: () -> Unit) {
+            tasks.add(task)
+            selector.wakeup()
+        }
+
+        override fun run() {
+            while (!stopped.get()) {
+                selector.select()
+                while (true) {
+                    val task = tasks.poll() ?: break
+                    try {
+                        task()
+                    } catch (e: Exception) {
+                        log.error("Event loop task failed", e)
+                    }
+                }
+
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    if (!key.isValid)
+                        continue
+
+                    if (key.isAcceptable) {
+                        accept()
+                        continue
+                    }
+
+                    val connection = key.attachment() as Connection
+                    try {
+                        if (key.isReadable)
+                            connection.read()
+                        if (key.isValid && key.isWritable)
+                            connection.flush()
+                    } catch (e: FrameTooLargeException) {
+                        log.error("Connection {} closed: {}", connection, e.message)
+                        connection.abort()
+                    } catch (e: IOException) {
+                        log.debug("Connection {} failed", connection, e)
+                        connection.abort()
+                    }
+                }
+            }
+
+            selector.keys().forEach { it.channel().close() }
+            selector.close()
+        }
+    }
+
+    private inner class Connection(private val channel: SocketChannel, private val loop: EventLoop) : Transport {
+        lateinit var key: SelectionKey
+        lateinit var handler: ConnectionHandler
+
+        private val readBuffer = ByteBuffer.allocate(8192)
+        private val decoder = FrameDecoder(maxFrameSize)
+        private val outbound = ConcurrentLinkedQueue<ByteBuffer>()
+        override val remoteAddress: SocketAddress? = channel.remoteAddress
+        private var closing = false
+
+        override val isOpen get() = channel.isOpen
+
+        fun read() {
+            val read = channel.read(readBuffer)
+            readBuffer.flip()
+            decoder.decode(readBuffer, handler::onFrame)
+            readBuffer.clear()
+
+            if (read == -1) {
+                decoder.finish(handler::onFrame)
+                key.interestOps(key.interestOps() and SelectionKey.OP_READ.inv())
+                handler.onEof()
+            }
+        }
+
+        fun flush() {
+            while (true) {
+                val buffer = outbound.peek() ?: break
+                channel.write(buffer)
+                if (buffer.hasRemaining())
+                    return
+                outbound.poll()
+            }
+            key.interestOps(key.interestOps() and SelectionKey.OP_WRITE.inv())
+            if (closing)
+                abort()
+        }
+
+        fun abort() {
+            if (!channel.isOpen)
+                return
+
+            key.cancel()
+            channel.close()
+            handler.onEof()
+        }
+
+        override fun write(bytes: ByteArray) {
+            outbound.add(ByteBuffer.wrap(bytes))
+            loop.execute {
+                if (key.isValid)
+                    key.interestOps(key.interestOps() or SelectionKey.OP_WRITE)
+            }
+        }
+
+        override fun useLengthPrefixedFrames() {
+            decoder.lengthPrefixed = true
+        }
+
+        override fun close() {
+            loop.execute {
+                // Сначала отдаем то, что уже поставлено в очередь, соединение закроется после отправки
+                closing = true
+                if (key.isValid && outbound.isNotEmpty())
+                    key.interestOps(key.interestOps() or SelectionKey.OP_WRITE)
+                else
+                    abort()
+            }
+        }
+
+        override fun toString() = "Connection[$remoteAddress]"
+    }
+}
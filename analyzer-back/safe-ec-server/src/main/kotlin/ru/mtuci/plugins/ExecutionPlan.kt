@@ -0,0 +1,92 @@
+package ru.mtuci.plugins
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.HexFormat
+
+/**
+ * Неизменяемый снимок загруженных плагинов, заранее сгруппированных по приоритету от HIGH к LOW.
+ * Собирается только при загрузке или выгрузке jar, обработка запроса его только читает - без блокировок и аллокаций.
+ */
+class ExecutionPlan private constructor(
+    val tiers: List<Tier>,
+    /**
+     * Все плагины плана в порядке выполнения
+     */
+    val plugins: List<Plugin>,
+    /**
+     * Отпечаток набора плагинов: приоритет, имя и класс каждого плагина и SHA-256 jar-файлов, из которых они
+     * загружены. Меняется при замене любого jar, даже если имена и версии остались прежними. Считается при сборке
+     * плана, у [fast] и [slow] тот же отпечаток, что у полного плана
+     */
+    val fingerprint: String
+) {
+    class Tier(val priority: Priority, val plugins: List<Plugin>) {
+        /**
+         * Метрики плагинов в том же порядке, что и [plugins]
+         */
+        internal val metrics = plugins.map { PluginMetrics(it) }
+    }
+
+    /**
+     * План без уровня LOW - по нему дается предварительный ответ. Если плагинов LOW нет, это тот же план
+     */
+    val fast: ExecutionPlan by lazy {
+        if (tiers.none { it.priority == Priority.LOW })
+            this
+        else
+            tiers.filter { it.priority != Priority.LOW }.let { fast -> ExecutionPlan(fast, fast.flatMap { it.plugins }, fingerprint) }
+    }
+
+    /**
+     * Только уровень LOW: выполняется после [fast], когда по быстрым уровням вердикт еще не окончательный
+     */
+    val slow: ExecutionPlan by lazy {
+        tiers.filter { it.priority == Priority.LOW }.let { slow -> ExecutionPlan(slow, slow.flatMap { it.plugins }, fingerprint) }
+    }
+
+    override fun toString() = tiers.joinToString(prefix = "ExecutionPlan[", postfix = "]") { "${it.priority}=${it.plugins.map(Plugin::name)}" }
+
+    companion object {
+        val EMPTY = of(emptyList())
+
+        /**
+         * [jars] - SHA-256 jar-файла, из которого загружен плагин. Берется от тех байтов, которые загружал
+         * [Plugins], а не от файла на диске в момент сборки плана: jar могли уже заменить
+         */
+        fun of(plugins: Collection<Plugin>, jars: Map<Plugin, ByteArray> = emptyMap()): ExecutionPlan {
+            val tiers = plugins.groupBy { it.priority() }
+                .toSortedMap(Comparator.reverseOrder())
+                .map { (priority, plugins) -> Tier(priority, plugins.toList()) }
+            val ordered = tiers.flatMap { it.plugins }
+            return ExecutionPlan(tiers, ordered, fingerprint(ordered, jars))
+        }
+
+        private fun fingerprint(plugins: List<Plugin>, jars: Map<Plugin, ByteArray>): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            for (plugin in plugins) {
+                digest.update("${plugin.priority()}:${plugin.name()}:${plugin.javaClass.name}\n".toByteArray(StandardCharsets.UTF_8))
+                jars[plugin]?.let { digest.update(it) }
+            }
+            return HexFormat.of().formatHex(digest.digest(), 0, 16)
+        }
+    }
+}
+
+/**
+ * Метрики одного плагина. Имена собираются и ищутся в [Metrics] один раз на план, а не на каждый вызов плагина.
+ * Метрика регистрируется при первой записи, как и раньше, поэтому в STATS попадают только вызванные плагины
+ */
+internal class PluginMetrics(plugin: Plugin) {
+    private val prefix = "plugin.${plugin.priority()}.${plugin.name()}"
+
+    /**
+     * Имя шага в профиле запроса
+     */
+    val step = "plugin.${plugin.name()}"
+    val time by lazy { Metrics.histogram("$prefix.time") }
+    val priorityTime by lazy { Metrics.histogram("priority.${plugin.priority()}.time") }
+    val cpuNanos by lazy { Metrics.counter("$prefix.cpuNanos") }
+    val allocatedBytes by lazy { Metrics.counter("$prefix.allocatedBytes") }
+    val overBudget by lazy { Metrics.counter("$prefix.overBudget") }
+}
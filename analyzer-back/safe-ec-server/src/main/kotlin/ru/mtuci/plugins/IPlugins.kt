@@ -2,6 +2,11 @@ package ru.mtuci.plugins
 
 interface IPlugins {
     val list: List<Plugin>
+
+    /**
+     * Текущий план выполнения. При изменении набора плагинов публикуется новый экземпляр
+     */
+    val plan: ExecutionPlan
     suspend fun monitor()
     fun stop()
 }
\ No newline at end of file
@@ -1,19 +1,18 @@
 package ru.mtuci.plugins
 
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.consumeEach
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import org.slf4j.LoggerFactory
 import ru.mtuci.asWatchChannel
 import java.io.File
 import java.net.URLClassLoader
+import java.nio.file.Files
 import java.nio.file.Path
-import java.nio.file.StandardWatchEventKinds
 import java.nio.file.WatchEvent
-import java.util.Collections
+import java.security.MessageDigest
 import java.util.ServiceLoader
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
 
 fun pluginString(plugin: Plugin): String =
 """
@@ -24,63 +23,110 @@ ${plugin.javaClass}{
 }
 """
 
-class Plugins(path: String) : IPlugins {
+/**
+ * Плагины из jar-файлов каталога [path]. Если [watch], каталог отслеживается: после изменений jar-файлы загружаются
+ * заново и публикуется новый [plan]. Без него плагины загружаются один раз, а [monitor] сразу возвращается.
+ *
+ * Копирование jar-файла дает несколько событий подряд, поэтому перезагрузка начинается, только когда в каталоге
+ * [reloadDelayMillis] не было новых событий, и загружает каждый измененный файл один раз. Загрузка (загрузчик
+ * классов, ServiceLoader, создание плагинов) идет в потоке монитора без блокировок, а готовый набор подменяет
+ * старый одной записью [plan]: проверки, которые уже выполняются, доходят со старым планом, новые получают новый
+ * и ничего не ждут.
+ *
+ * Jar-файл читается один раз: по прочитанным байтам считается его SHA-256 для [ExecutionPlan.fingerprint], а классы
+ * загружаются из копии этих байтов во временном файле. Поэтому отпечаток всегда соответствует коду, который
+ * выполняется, даже если jar в каталоге тем временем заменили.
+ */
+class Plugins(path: String, private val reloadDelayMillis: Long = 500, watch: Boolean = true) : IPlugins {
     private val log = LoggerFactory.getLogger(javaClass)
 
-    private val lock = ReentrantReadWriteLock()
-    private val container = HashMap<Path, Pair<ClassLoader, List<Plugin>>>()
+    private class Loaded(val classLoader: ClassLoader, val plugins: List<Plugin>, val digest: ByteArray)
+
+    /**
+     * Загруженные jar-файлы по абсолютному пути. Меняется только монитором, каждый раз новой копией
+     */
+    @Volatile
+    private var container: Map<Path, Loaded> = emptyMap()
     private val path: Path
-    private val channel: Channel<WatchEvent<Path>>
+    private val channel: Channel<WatchEvent<Path>>?
+
+    @Volatile
+    override var plan: ExecutionPlan = ExecutionPlan.EMPTY
+        private set
 
-    override val list: List<Plugin> get() = lock.read { Collections.unmodifiableList(container.values.flatMap { it.second }) }
+    override val list: List<Plugin> get() = plan.plugins
 
     init {
         val file = File(path)
         this.path = file.toPath().toAbsolutePath()
-        file.list()?.filter { it.endsWith(".jar") }
-            ?.forEach { lock.write { load(this.path.resolve(it)) } }
-        this.channel = file.asWatchChannel()
+        val jars = file.list()?.filter { it.endsWith(".jar") }?.map { this.path.resolve(it) } ?: emptyList()
+        if (jars.isNotEmpty())
+            reload(jars.toSet())
+        this.channel = if (watch) file.asWatchChannel() else null
     }
 
     override suspend fun monitor() {
+        val channel = channel ?: return
         log.info("Plugins monitor started for directory $path")
-        channel.consumeEach { e ->
-            if (!e.context().toString().endsWith(".jar"))
-                return@consumeEach
-
-            lock.write {
-                when(e.kind()) {
-                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE -> {
-                        if (!unload(e.context()))
-                            return@consumeEach
-                    }
-                }
-                when(e.kind()) {
-                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE -> {
-                        load(e.context())
-                    }
-                }
+        while (true) {
+            val changed = HashSet<Path>()
+            changed.addJar(channel.receiveCatching().getOrNull() ?: break)
+            while (true) {
+                val next = withTimeoutOrNull(reloadDelayMillis) { channel.receiveCatching() } ?: break
+                changed.addJar(next.getOrNull() ?: break)
             }
+            if (changed.isNotEmpty())
+                withContext(Dispatchers.IO) { reload(changed) }
         }
     }
 
-    private fun load(jar: Path) {
-        val cl = URLClassLoader(arrayOf(jar.toUri().toURL()), this::class.java.classLoader)
-        val plugins = ServiceLoader.load(Plugin::class.java, cl)
-        container[jar] = Pair(cl, plugins.toList())
-        log.info("Loaded plugins from jar ${jar.toAbsolutePath()} with classloader=$cl:\n${plugins.joinToString(System.lineSeparator()) { pluginString(it) }}")
+    /**
+     * В событии каталога - имя файла относительно каталога, загруженные файлы хранятся по абсолютному пути
+     */
+    private fun MutableSet<Path>.addJar(event: WatchEvent<Path>) {
+        if (event.context().toString().endsWith(".jar"))
+            add(path.resolve(event.context()))
+    }
+
+    /**
+     * Удаленные файлы выгружаются, остальные загружаются заново. Если файл не загрузился (например, скопирован
+     * не до конца), остается прежняя версия
+     */
+    private fun reload(jars: Set<Path>) {
+        val next = HashMap(container)
+        for (jar in jars) {
+            if (!Files.isRegularFile(jar)) {
+                next.remove(jar)?.let { log.info("Unloaded plugin from $jar, plugin=${it.plugins}, classloader=${it.classLoader}") }
+                continue
+            }
+            val loaded = load(jar)
+            if (loaded != null)
+                next[jar] = loaded
+            else if (next.containsKey(jar))
+                log.warn("Keeping previously loaded plugins from {}", jar)
+        }
+        container = next
+        val jars = next.values.flatMap { loaded -> loaded.plugins.map { it to loaded.digest } }.toMap()
+        plan = ExecutionPlan.of(next.values.flatMap { it.plugins }, jars)
+        log.info("Rebuilt {}", plan)
     }
 
-    private fun unload(jar: Path): Boolean {
-        val p = container.remove(jar)
-        val res = p != null
-        if (res)
-            log.info("Unloaded plugin from ${jar.toAbsolutePath()}, plugin=${p!!.second}, classloader=${p.first}")
-        return res
+    private fun load(jar: Path): Loaded? = try {
+        val bytes = Files.readAllBytes(jar)
+        val copy = Files.createTempFile("plugin-", ".jar").apply { toFile().deleteOnExit() }
+        Files.write(copy, bytes)
+        val cl = URLClassLoader(arrayOf(copy.toUri().toURL()), this::class.java.classLoader)
+        val plugins = ServiceLoader.load(Plugin::class.java, cl).toList()
+        log.info("Loaded plugins from jar $jar with classloader=$cl:\n${plugins.joinToString(System.lineSeparator()) { pluginString(it) }}")
+        Loaded(cl, plugins, MessageDigest.getInstance("SHA-256").digest(bytes))
+    } catch (e: Throwable) {
+        log.error("Cannot load plugins from {}", jar, e)
+        null
     }
 
     override fun stop() {
-        this.channel.close()
+        val channel = channel ?: return
+        channel.close()
         log.info("Stopped plugins monitor for directory $path")
     }
 }
@@ -16,7 +16,9 @@ class WatchChannel(
 
     private val watchService: WatchService = FileSystems.getDefault().newWatchService()
     private val registeredKeys = ArrayList<WatchKey>()
-    private val path: Path = if (file.isFile) {
+    // Для файла отслеживается его каталог, и события других файлов пропускаются. Для каталога нужны все события
+    private val watchesFile = file.isFile
+    private val path: Path = if (watchesFile) {
         file.parentFile
     } else {
         file
@@ -40,16 +42,27 @@ class WatchChannel(
                     shouldRegisterPath = false
                 }
 
-                val monitorKey = watchService.take()
+                // close() закрывает WatchService, ожидание событий прерывается
+                val monitorKey = try {
+                    watchService.take()
+                } catch (e: ClosedWatchServiceException) {
+                    break
+                }
                 val dirPath = monitorKey.watchable() as? Path ?: break
                 monitorKey.pollEvents().forEach {
                     val eventPath = dirPath.resolve(it.context() as Path)
 
-                    if (eventPath.toFile().absolutePath != file.absolutePath) {
+                    if (watchesFile && eventPath.toFile().absolutePath != file.absolutePath) {
                         return@forEach
                     }
 
-                    channel.send(it as WatchEvent<Path>)
+                    try {
+                        channel.send(it as WatchEvent<Path>)
+                    } catch (e: ClosedSendChannelException) {
+                        return@launch
+                    } catch (e: CancellationException) {
+                        return@launch
+                    }
                 }
 
                 if (!monitorKey.reset()) {
@@ -70,6 +83,10 @@ class WatchChannel(
             clear()
         }
 
-        return channel.close(cause)
+        // Отслеживание прекращается: ожидание событий прерывается, а событие, которое ждет получателя, отбрасывается
+        return channel.close(cause).also {
+            channel.cancel()
+            watchService.close()
+        }
     }
 }
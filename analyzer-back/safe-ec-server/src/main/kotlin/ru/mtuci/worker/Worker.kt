@@ -0,0 +1,142 @@
+package ru.mtuci.worker
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import org.slf4j.LoggerFactory
+import ru.mtuci.Outcome
+import ru.mtuci.PluginExecutor
+import ru.mtuci.ServerConfig
+import ru.mtuci.plugins.IPlugins
+import ru.mtuci.plugins.Plugins
+import ru.mtuci.plugins.Result.TechError
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+
+private val log = LoggerFactory.getLogger("Worker")
+
+/**
+ * Процесс-вычислитель для плагинов LOW. Основной сервер отдает ему задачи по [WorkerProtocol], а сам занимается
+ * соединениями и быстрыми проверками, поэтому тяжелая арифметика и сборка мусора вычислителя его не тормозят.
+ *
+ * Плагины загружаются из того же каталога, что и у сервера. Задача, отправленная с другим отпечатком набора
+ * плагинов, не выполняется - сервер выполнит ее сам. Задача, которую сервер отменил, прерывается так же, как
+ * плагины отмененного запроса на самом сервере.
+ */
+class Worker(port: Int, private val plugins: IPlugins, config: ServerConfig = ServerConfig()) {
+    private val executor = PluginExecutor(config.parallelTiers, config.pluginTimeoutMillis, config.pluginTimeoutUndefined,
+        config.pluginThreads, config.lowPluginThreads)
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val socket = ServerSocket(port)
+
+    suspend fun go() = withContext(Dispatchers.IO) {
+        log.info("Worker is listening on port {}", socket.localPort)
+        while (!socket.isClosed) {
+            val client = try {
+                socket.accept()
+            } catch (e: Exception) {
+                if (!socket.isClosed)
+                    log.error("Cannot accept connection", e)
+                break
+            }
+            scope.launch { serve(client) }
+        }
+    }
+
+    private suspend fun serve(client: Socket) {
+        log.info("Server {} connected", client.remoteSocketAddress)
+        client.tcpNoDelay = true
+        val input = DataInputStream(BufferedInputStream(client.getInputStream()))
+        val output = DataOutputStream(BufferedOutputStream(client.getOutputStream()))
+        // Задачи в работе, чтобы их можно было отменить по сообщению сервера
+        val jobs = ConcurrentHashMap<Long, Job>()
+        try {
+            coroutineScope {
+                while (true) {
+                    val message = try {
+                        WorkerProtocol.readMessage(input)
+                    } catch (e: EOFException) {
+                        // Сервер закрыл соединение, результатов никто не ждет
+                        coroutineContext.cancelChildren()
+                        break
+                    }
+                    when (message) {
+                        is WorkerProtocol.Cancel -> jobs.remove(message.id)?.let {
+                            log.info("Task {} cancelled by server", message.id)
+                            it.cancel()
+                        }
+                        is WorkerProtocol.Task -> {
+                            val job = launch(start = CoroutineStart.LAZY) {
+                                try {
+                                    val result = run(message)
+                                    synchronized(output) {
+                                        WorkerProtocol.writeResult(output, message.id, result)
+                                        output.flush()
+                                    }
+                                } finally {
+                                    jobs.remove(message.id)
+                                }
+                            }
+                            // Задача попадает в jobs до запуска, иначе быстрая задача удалит себя раньше, чем ее запишут
+                            jobs[message.id] = job
+                            job.start()
+                        }
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            if (!client.isClosed)
+                log.error("Connection to server {} failed", client.remoteSocketAddress, e)
+        } finally {
+            client.close()
+            log.info("Server {} disconnected", client.remoteSocketAddress)
+        }
+    }
+
+    private suspend fun run(task: WorkerProtocol.Task) = try {
+        val plan = plugins.plan
+        if (task.fingerprint == plan.fingerprint) {
+            executor.execute(task.request, plan.slow, id = task.requestId)
+        } else {
+            log.warn("Task {} was sent for other plugins, worker has {}", task.id, plan)
+            null
+        }
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        log.error("Got error while running plugins", e)
+        Outcome(TechError(e.message))
+    }
+
+    fun stop() {
+        socket.close()
+        scope.cancel()
+        executor.stop()
+    }
+}
+
+fun main(args: Array<String>) {
+    val port = Integer.parseInt(args.elementAtOrElse(0) { "15600" })
+    val pluginsDir = Paths.get(System.getProperty("user.dir")).resolve("plugins").toAbsolutePath()
+    val config = ServerConfig()
+    val plugins = Plugins(pluginsDir.toString(), config.pluginsReloadDelayMillis)
+    GlobalScope.launch { plugins.monitor() }
+    runBlocking { Worker(port, plugins, config).go() }
+}
@@ -0,0 +1,217 @@
+package ru.mtuci.worker
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.slf4j.LoggerFactory
+import ru.mtuci.Outcome
+import ru.mtuci.ServerConfig
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Metrics
+import ru.mtuci.plugins.Request
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+private val log = LoggerFactory.getLogger("Server")
+
+private const val CONNECT_TIMEOUT_MILLIS = 1000
+private const val MIN_RETRY_MILLIS = 200L
+private const val MAX_RETRY_MILLIS = 10_000L
+
+/**
+ * Процессы-вычислители ([Worker]), которым сервер отдает уровень LOW. Задача уходит вычислителю с наименьшим числом
+ * невыполненных задач, при равенстве - первому в списке. Если ни один вычислитель не доступен, соединение
+ * оборвалось или у вычислителя другой набор плагинов, [run] возвращает null и сервер выполняет плагины сам.
+ *
+ * Вычислители - уже запущенные процессы по адресам host:port, в том числе на других машинах, и процессы,
+ * которые пул запускает сам на этой машине, см. [ServerConfig.workers] и [ServerConfig.workersSpawn].
+ */
+internal class WorkerPool(addresses: List<String>, private val scope: CoroutineScope, private val processes: List<Process> = emptyList()) {
+    private val workers = addresses.map { WorkerConnection(it) }
+    private val ids = AtomicLong()
+
+    private val dispatched = Metrics.counter("workers.dispatched")
+    private val fallbacks = Metrics.counter("workers.fallback")
+    private val time = Metrics.histogram("workers.time")
+    private val cancelled = Metrics.counter("workers.cancelled")
+
+    /**
+     * [id] - id запроса клиента, вычислитель отмечает им свои события JFR
+     */
+    suspend fun run(request: Request, plan: ExecutionPlan, id: String? = null): Outcome? {
+        val worker = workers.filter { it.available }.minByOrNull { it.inFlight }
+        val result = worker?.let {
+            dispatched.increment()
+            val started = System.nanoTime()
+            it.run(WorkerProtocol.Task(ids.incrementAndGet(), plan.fingerprint, request, id)).also { time.recordSince(started) }
+        }
+        if (result == null)
+            fallbacks.increment()
+        return result
+    }
+
+    fun stop() {
+        workers.forEach { it.close() }
+        processes.forEach { it.destroy() }
+    }
+
+    private inner class WorkerConnection(val address: String) {
+        private val host = address.substringBeforeLast(':')
+        private val port = address.substringAfterLast(':').toInt()
+        private val lock = Any()
+        private val pending = ConcurrentHashMap<Long, CompletableDeferred<Outcome?>>()
+        private val depth = AtomicInteger()
+        private var socket: Socket? = null
+        private var output: DataOutputStream? = null
+        private var retryAt = 0L
+        private var retryMillis = MIN_RETRY_MILLIS
+
+        val inFlight get() = depth.get()
+
+        val available get() = synchronized(lock) { socket?.isClosed == false || System.currentTimeMillis() >= retryAt }
+
+        /**
+         * Если запрос отменен (дедлайн, клиент отключился), вычислителю уходит отмена, и он прерывает плагины
+         */
+        suspend fun run(task: WorkerProtocol.Task): Outcome? {
+            val reply = CompletableDeferred<Outcome?>()
+            pending[task.id] = reply
+            depth.incrementAndGet()
+            try {
+                if (!withContext(Dispatchers.IO) { send(task) })
+                    return null
+                return reply.await()
+            } catch (e: CancellationException) {
+                if (!reply.isCompleted)
+                    scope.launch(Dispatchers.IO) { cancel(task.id) }
+                throw e
+            } finally {
+                pending.remove(task.id)
+                depth.decrementAndGet()
+            }
+        }
+
+        private fun cancel(id: Long) = synchronized(lock) {
+            // Задача уходила в это соединение: если оно оборвалось, вычислитель уже бросил задачу сам
+            val output = this.output?.takeIf { socket?.isClosed == false } ?: return@synchronized
+            try {
+                WorkerProtocol.writeCancel(output, id)
+                output.flush()
+                cancelled.increment()
+            } catch (e: IOException) {
+                log.warn("Cannot cancel task on worker {}: {}", address, e.message)
+                socket?.close()
+            }
+        }
+
+        private fun send(task: WorkerProtocol.Task): Boolean = synchronized(lock) {
+            val output = connection() ?: return false
+            try {
+                WorkerProtocol.writeTask(output, task)
+                output.flush()
+                true
+            } catch (e: IOException) {
+                log.warn("Cannot send task to worker {}: {}", address, e.message)
+                socket?.close()
+                false
+            }
+        }
+
+        /**
+         * Вызывается под [lock]
+         */
+        private fun connection(): DataOutputStream? {
+            if (socket?.isClosed == false)
+                return output
+            if (System.currentTimeMillis() < retryAt)
+                return null
+
+            return try {
+                val socket = Socket()
+                socket.connect(InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS)
+                socket.tcpNoDelay = true
+                log.info("Connected to worker {}", address)
+                this.socket = socket
+                output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+                retryMillis = MIN_RETRY_MILLIS
+                scope.launch(Dispatchers.IO) { read(socket) }
+                output
+            } catch (e: IOException) {
+                log.warn("Worker {} is unavailable, next attempt in {} ms: {}", address, retryMillis, e.message)
+                retryAt = System.currentTimeMillis() + retryMillis
+                retryMillis = (retryMillis * 2).coerceAtMost(MAX_RETRY_MILLIS)
+                null
+            }
+        }
+
+        private fun read(socket: Socket) {
+            try {
+                val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+                while (true) {
+                    val (id, result) = WorkerProtocol.readResult(input)
+                    pending[id]?.complete(result)
+                }
+            } catch (e: Exception) {
+                if (!socket.isClosed)
+                    log.warn("Connection to worker {} failed: {}", address, e.message)
+            } finally {
+                socket.close()
+                // Задачи оборвавшегося соединения сервер выполнит сам
+                pending.values.forEach { it.complete(null) }
+                log.info("Disconnected from worker {}", address)
+            }
+        }
+
+        fun close() = synchronized(lock) {
+            socket?.close()
+            socket = null
+        }
+    }
+
+    companion object {
+        fun of(config: ServerConfig, scope: CoroutineScope): WorkerPool? {
+            val spawned = (0 until config.workersSpawn).map { config.workersPort + it }
+            if (config.workers.isEmpty() && spawned.isEmpty())
+                return null
+
+            val processes = spawned.map { spawn(it) }
+            return WorkerPool(config.workers + spawned.map { "localhost:$it" }, scope, processes)
+        }
+
+        /**
+         * Вычислитель запускается той же JVM и с тем же classpath, что и сервер, в том же рабочем каталоге,
+         * поэтому видит тот же каталог плагинов. Настройки -D (бюджеты и потоки плагинов, factor.timeout и т.п.)
+         * и параметры JVM -X передаются так же, как у сервера. Вывод процесса попадает в вывод сервера
+         */
+        private fun spawn(port: Int): Process {
+            val java = ProcessHandle.current().info().command().orElse("java")
+            log.info("Starting worker on port {}", port)
+            val command = listOf(java) + jvmArguments() +
+                listOf("-cp", System.getProperty("java.class.path"), "ru.mtuci.worker.WorkerKt", port.toString())
+            return ProcessBuilder(command)
+                .directory(File(System.getProperty("user.dir")))
+                .inheritIO()
+                .start()
+        }
+
+        /**
+         * Отладчик не передается: второй процесс не сможет занять тот же порт
+         */
+        internal fun jvmArguments(): List<String> = ManagementFactory.getRuntimeMXBean().inputArguments
+            .filter { it.startsWith("-D") || it.startsWith("-X") }
+            .filter { !it.startsWith("-Xrunjdwp") && it != "-Xdebug" }
+    }
+}
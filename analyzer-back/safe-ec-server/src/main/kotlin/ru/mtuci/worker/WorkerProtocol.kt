@@ -0,0 +1,228 @@
+package ru.mtuci.worker
+
+import ru.mtuci.Outcome
+import ru.mtuci.plugins.Request
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.OID
+import ru.mtuci.plugins.Request.Params
+import ru.mtuci.plugins.Request.Params.Supplementary
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.TechError
+import ru.mtuci.plugins.Result.Undefined
+import ru.mtuci.plugins.Result.Validated
+import ru.mtuci.plugins.Result.Vulnerable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.math.BigInteger
+import java.security.spec.ECFieldF2m
+import java.security.spec.ECFieldFp
+import java.security.spec.ECParameterSpec
+import java.security.spec.ECPoint
+import java.security.spec.EllipticCurve
+
+/**
+ * Задача для процесса-вычислителя и ее результат.
+ *
+ * Сообщения сервера начинаются с int8 вида: 0 - задача, 1 - отмена задачи (int64 id: клиент перестал ждать, ответ
+ *            вычислитель не отправляет).
+ * Задача:    int64 id, отпечаток набора плагинов, строка - id запроса клиента, int8 вид (0 - OID, 1 - Name, 2 - Params), для OID и Name -
+ *            значение, для Params - int8 поле (0 - простое, 1 - двоичное), для простого p, для двоичного int32 m,
+ *            int32 n, n * int32 ks, затем a, b, x, y, n, int32 h, байты seed, ed и int32 количество (-1 для null)
+ *            и множители edFactors.
+ * Результат: int64 id, int8 тип (0 - Validated, 1 - Undefined, 2 - Vulnerable, 3 - TechError, 4 - у вычислителя
+ *            другой набор плагинов), для Vulnerable - строки rule и message, для TechError - строка message, кроме
+ *            типа 4 - bool, все ли плагины уложились в бюджет ([Outcome.complete]).
+ *
+ * Отпечаток и значения OID и Name - modified UTF-8 ([DataOutputStream.writeUTF]), прочие строки - признак null
+ * и modified UTF-8, байты и большие числа - int32 длина (-1 для null) и содержимое. Сообщения идут друг за другом
+ * без разметки, соединение одно на вычислитель.
+ */
+internal object WorkerProtocol {
+    private const val MESSAGE_TASK = 0
+    private const val MESSAGE_CANCEL = 1
+
+    private const val KIND_OID = 0
+    private const val KIND_NAME = 1
+    private const val KIND_PARAMS = 2
+
+    private const val FIELD_PRIME = 0
+    private const val FIELD_BINARY = 1
+
+    private const val RESULT_VALIDATED = 0
+    private const val RESULT_UNDEFINED = 1
+    private const val RESULT_VULNERABLE = 2
+    private const val RESULT_TECH_ERROR = 3
+    private const val RESULT_OTHER_PLUGINS = 4
+
+    sealed interface Message {
+        val id: Long
+    }
+
+    /**
+     * [requestId] - id запроса клиента для событий JFR, с [id] не связан
+     */
+    class Task(override val id: Long, val fingerprint: String, val request: Request, val requestId: String? = null) : Message
+
+    class Cancel(override val id: Long) : Message
+
+    fun writeTask(out: DataOutputStream, task: Task) {
+        out.writeByte(MESSAGE_TASK)
+        out.writeLong(task.id)
+        out.writeUTF(task.fingerprint)
+        out.writeString(task.requestId)
+        when (val request = task.request) {
+            is OID -> {
+                out.writeByte(KIND_OID)
+                out.writeUTF(request.oid)
+            }
+            is Named -> {
+                out.writeByte(KIND_NAME)
+                out.writeUTF(request.name)
+            }
+            is Params -> {
+                out.writeByte(KIND_PARAMS)
+                out.writeParams(request)
+            }
+            else -> throw IllegalArgumentException("Unsupported request ${request.javaClass}")
+        }
+    }
+
+    fun writeCancel(out: DataOutputStream, id: Long) {
+        out.writeByte(MESSAGE_CANCEL)
+        out.writeLong(id)
+    }
+
+    fun readMessage(input: DataInputStream): Message = when (val type = input.readByte().toInt()) {
+        MESSAGE_TASK -> readTask(input)
+        MESSAGE_CANCEL -> Cancel(input.readLong())
+        else -> throw IOException("Unknown message type $type")
+    }
+
+    private fun readTask(input: DataInputStream): Task {
+        val id = input.readLong()
+        val fingerprint = input.readUTF()
+        val requestId = input.readString()
+        val request = when (val kind = input.readByte().toInt()) {
+            KIND_OID -> OID(input.readUTF())
+            KIND_NAME -> Named(input.readUTF())
+            KIND_PARAMS -> input.readParams()
+            else -> throw IOException("Unknown request kind $kind")
+        }
+        return Task(id, fingerprint, request, requestId)
+    }
+
+    /**
+     * [outcome] null - задача посчитана другим набором плагинов и результат не годится
+     */
+    fun writeResult(out: DataOutputStream, id: Long, outcome: Outcome?) {
+        out.writeLong(id)
+        when (val result = outcome?.result) {
+            null -> {
+                out.writeByte(RESULT_OTHER_PLUGINS)
+                return
+            }
+            is Validated -> out.writeByte(RESULT_VALIDATED)
+            is Undefined -> out.writeByte(RESULT_UNDEFINED)
+            is Vulnerable -> {
+                out.writeByte(RESULT_VULNERABLE)
+                out.writeString(result.rule)
+                out.writeString(result.message)
+            }
+            is TechError -> {
+                out.writeByte(RESULT_TECH_ERROR)
+                out.writeString(result.message)
+            }
+        }
+        out.writeBoolean(outcome.complete)
+    }
+
+    fun readResult(input: DataInputStream): Pair<Long, Outcome?> {
+        val id = input.readLong()
+        val result = when (val type = input.readByte().toInt()) {
+            RESULT_VALIDATED -> Validated()
+            RESULT_UNDEFINED -> Undefined()
+            RESULT_VULNERABLE -> Vulnerable(input.readString(), input.readString())
+            RESULT_TECH_ERROR -> TechError(input.readString())
+            RESULT_OTHER_PLUGINS -> return id to null
+            else -> throw IOException("Unknown result type $type")
+        }
+        return id to Outcome(result, input.readBoolean())
+    }
+
+    private fun DataOutputStream.writeParams(request: Params) {
+        val spec = request.params
+        when (val field = spec.curve.field) {
+            is ECFieldFp -> {
+                writeByte(FIELD_PRIME)
+                writeBigInteger(field.p)
+            }
+            is ECFieldF2m -> {
+                writeByte(FIELD_BINARY)
+                writeInt(field.m)
+                val ks = field.midTermsOfReductionPolynomial ?: IntArray(0)
+                writeInt(ks.size)
+                ks.forEach { writeInt(it) }
+            }
+            else -> throw IllegalArgumentException("Unsupported field ${field.javaClass}")
+        }
+        writeBigInteger(spec.curve.a)
+        writeBigInteger(spec.curve.b)
+        writeBigInteger(spec.generator.affineX)
+        writeBigInteger(spec.generator.affineY)
+        writeBigInteger(spec.order)
+        writeInt(spec.cofactor)
+        writeByteArray(spec.curve.seed)
+        writeBigInteger(request.supplementary?.embeddingDegree)
+        val factors = request.supplementary?.edFactors
+        writeInt(factors?.size ?: -1)
+        factors?.forEach { writeBigInteger(it) }
+    }
+
+    private fun DataInputStream.readParams(): Params {
+        val field = when (val type = readByte().toInt()) {
+            FIELD_PRIME -> ECFieldFp(readBigInteger())
+            FIELD_BINARY -> {
+                val m = readInt()
+                val ks = IntArray(readInt()) { readInt() }
+                if (ks.isEmpty()) ECFieldF2m(m) else ECFieldF2m(m, ks)
+            }
+            else -> throw IOException("Unsupported curve type $type")
+        }
+        val a = readBigInteger()
+        val b = readBigInteger()
+        val x = readBigInteger()
+        val y = readBigInteger()
+        val n = readBigInteger()
+        val h = readInt()
+        val seed = readByteArray()
+        val ed = readBigIntegerOrNull()
+        val count = readInt()
+        val factors = if (count < 0) null else List(count) { readBigInteger() }
+        val supplementary = if (ed == null && factors == null) null else Supplementary(ed, factors)
+        return Params(ECParameterSpec(EllipticCurve(field, a, b, seed), ECPoint(x, y), n, h), supplementary)
+    }
+
+    private fun DataOutputStream.writeString(value: String?) {
+        writeBoolean(value != null)
+        value?.let { writeUTF(it) }
+    }
+
+    private fun DataInputStream.readString(): String? = if (readBoolean()) readUTF() else null
+
+    private fun DataOutputStream.writeByteArray(bytes: ByteArray?) {
+        writeInt(bytes?.size ?: -1)
+        bytes?.let { write(it) }
+    }
+
+    private fun DataInputStream.readByteArray(): ByteArray? {
+        val size = readInt()
+        return if (size < 0) null else ByteArray(size).also { readFully(it) }
+    }
+
+    private fun DataOutputStream.writeBigInteger(value: BigInteger?) = writeByteArray(value?.toByteArray())
+
+    private fun DataInputStream.readBigIntegerOrNull() = readByteArray()?.let { BigInteger(it) }
+
+    private fun DataInputStream.readBigInteger() = readBigIntegerOrNull() ?: throw IOException("Value is required")
+}
@@ -0,0 +1,140 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Result
+import java.util.Collections
+
+const val ADMISSION_PORT = 8003
+
+class AdmissionTest {
+    @Test
+    fun testBusyResponse() {
+        val slow = object : Plugin {
+            override fun priority() = Priority.NORMAL
+            override fun name() = "Slow plugin"
+            override fun check(named: Named): Result {
+                Thread.sleep(1000)
+                return Result.Validated()
+            }
+        }
+        // Одна проверка выполняется, очереди нет - вторая команда соединения сразу получает BUSY
+        val server = Server(ADMISSION_PORT, TestPlugins(listOf(slow)), ServerConfig(cacheSize = 0, maxInFlight = 1, maxQueued = 0))
+        GlobalScope.launch { server.go() }
+        val client = TestClient(ADMISSION_PORT)
+        try {
+            client.open()
+            client.send(Json.encodeToString(Command("1", "Name", "first")))
+            client.send(Json.encodeToString(Command("2", "Name", "second")))
+
+            val busy = Json.decodeFromString<Response>(client.receive())
+            assertEquals("2", busy.reqId)
+            assertEquals(BUSY, busy.type)
+            assertTrue(busy.info!!.toLong() >= 100)
+
+            val done = Json.decodeFromString<Response>(client.receive())
+            assertEquals("1", done.reqId)
+            assertEquals(SUCCESS, done.type)
+        } finally {
+            client.close()
+            server.stop()
+        }
+    }
+
+    @Test
+    fun testRejectedOverQueue() = runBlocking {
+        val admission = Admission("test", 1, 1)
+        val release = CompletableDeferred<Unit>()
+
+        val running = async(Dispatchers.IO) { admission.run { release.await(); 1 } }
+        delay(100)
+        val queued = async(Dispatchers.IO) { admission.run { 2 } }
+        delay(100)
+        assertEquals(1, admission.active)
+        assertEquals(1, admission.queued)
+
+        val busy = assertThrows(BusyException::class.java) { runBlocking { admission.run { 3 } } }
+        assertTrue(busy.retryAfterMillis in 100..30_000)
+
+        release.complete(Unit)
+        assertEquals(1, running.await())
+        assertEquals(2, queued.await())
+        assertEquals(0, admission.active)
+        assertEquals(0, admission.queued)
+    }
+
+    @Test
+    fun testFairAcrossClients() = runBlocking {
+        val admission = Admission("test", 1, 100)
+        val release = CompletableDeferred<Unit>()
+        val order = Collections.synchronizedList(mutableListOf<String>())
+
+        val running = async(Dispatchers.IO) { admission.run { release.await() } }
+        delay(100)
+        // Сканер поставил в очередь десять пакетных запросов, затем пришел интерактивный запрос из IDE
+        val scan = List(10) { i -> async(Dispatchers.IO) { admission.run("scanner", bulk = true) { order.add("scan-$i") } }.also { delay(10) } }
+        val ide = async(Dispatchers.IO) { admission.run("ide") { order.add("ide") } }
+        delay(100)
+        assertEquals(11, admission.queued)
+
+        release.complete(Unit)
+        running.await()
+        scan.forEach { it.await() }
+        ide.await()
+        assertTrue(order.indexOf("ide") <= 1, order.toString())
+        assertEquals((0 until 10).map { "scan-$it" }, order.filter { it != "ide" })
+    }
+
+    @Test
+    fun testCancelledWhileQueued() = runBlocking {
+        val admission = Admission("test", 1, 10)
+        val release = CompletableDeferred<Unit>()
+
+        val running = async(Dispatchers.IO) { admission.run { release.await() } }
+        delay(100)
+        val cancelled = async(Dispatchers.IO) { admission.run("client") { } }
+        val queued = async(Dispatchers.IO) { admission.run("other") { 2 } }
+        delay(100)
+        cancelled.cancel()
+        delay(100)
+        assertEquals(1, admission.queued)
+
+        release.complete(Unit)
+        running.await()
+        assertEquals(2, queued.await())
+        assertEquals(0, admission.active)
+        assertEquals(0, admission.queued)
+    }
+
+    @Test
+    fun testRetryAfterGrowsWithQueue() = runBlocking {
+        val admission = Admission("test", 1, 10)
+        admission.run { delay(500) }
+        val idle = admission.retryAfterMillis()
+
+        val release = CompletableDeferred<Unit>()
+        val running = async(Dispatchers.IO) { admission.run { release.await() } }
+        val queued = List(4) { async(Dispatchers.IO) { admission.run { } } }
+        delay(100)
+
+        assertTrue(admission.retryAfterMillis() > idle, "${admission.retryAfterMillis()} <= $idle")
+        release.complete(Unit)
+        running.await()
+        queued.forEach { it.await() }
+    }
+}
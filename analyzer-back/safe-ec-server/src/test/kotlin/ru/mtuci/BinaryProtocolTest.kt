@@ -0,0 +1,156 @@
+package ru.mtuci
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import ru.mtuci.engine.SELECTOR_ENGINE
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.math.BigInteger
+import java.nio.charset.StandardCharsets
+
+const val BINARY_PORT = 8002
+
+class BinaryProtocolTest {
+    @Test
+    fun testNameAndParams() {
+        val client = hello()
+
+        client.sendBinary(command(7, BinaryCodec.KIND_NAME) { writeString("data") })
+        var response = client.receiveBinary()!!
+        assertEquals(7L, response.long)
+        assertEquals(0.toByte(), response.get())
+
+        client.sendBinary(command(8, BinaryCodec.KIND_PARAMS) {
+            writeByte(BinaryCodec.FIELD_PRIME.toInt())
+            listOf(23, 1, 1, 3, 10, 7).forEach { writeBigInteger(BigInteger.valueOf(it.toLong())) }
+            writeInt(1)
+            writeByte(BinaryCodec.FLAG_ED_FACTORS)
+            writeShort(2)
+            writeBigInteger(BigInteger.TWO)
+            writeBigInteger(BigInteger.valueOf(3))
+        })
+        response = client.receiveBinary()!!
+        assertEquals(8L, response.long)
+        assertEquals(0.toByte(), response.get())
+
+        client.close()
+    }
+
+    @Test
+    fun testErrorCarriesId() {
+        val client = hello()
+
+        client.sendBinary(command(9, 42) { })
+        val response = client.receiveBinary()!!
+        assertEquals(9L, response.long)
+        assertEquals(1.toByte(), response.get())
+        assertEquals(-1, response.int)
+        val info = ByteArray(response.int).also { response.get(it) }
+        assertEquals("Unknown request type 'Unknown(42)'", String(info, StandardCharsets.UTF_8))
+
+        client.close()
+    }
+
+    @Test
+    fun testBatch() {
+        val client = hello()
+
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).apply {
+            writeByte(BinaryCodec.OP_BATCH.toInt())
+            writeLong(20)
+            writeInt(3)
+            for (id in 21L..23L) {
+                writeLong(id)
+                writeByte(BinaryCodec.KIND_NAME.toInt())
+                writeString("data$id")
+            }
+            flush()
+        }
+        client.sendBinary(bytes.toByteArray())
+
+        val ids = List(3) {
+            val response = client.receiveBinary()!!
+            val id = response.long
+            assertEquals(0.toByte(), response.get())
+            id
+        }
+        assertEquals(setOf(21L, 22L, 23L), ids.toSet())
+
+        client.close()
+    }
+
+    @Test
+    fun testUnsupportedVersion() {
+        val client = TestClient(BINARY_PORT)
+        client.open()
+        client.send(Json.encodeToString(Command("0", HELLO, "3")))
+        val decoded = Json.decodeFromString<Response>(client.receive())
+        assertEquals(ERROR, decoded.type)
+
+        // Соединение осталось на исходном протоколе
+        client.send(Json.encodeToString(Command("1", "Name", "data")))
+        assertEquals(SUCCESS, Json.decodeFromString<Response>(client.receive()).type)
+        client.close()
+    }
+
+    private fun hello(): TestClient {
+        val client = TestClient(BINARY_PORT)
+        client.open()
+        client.send(Json.encodeToString(Command("0", HELLO, PROTOCOL_V2)))
+        val decoded = Json.decodeFromString<Response>(client.receive())
+        assertEquals(SUCCESS, decoded.type)
+        assertEquals(PROTOCOL_V2, decoded.info)
+        client.useBinary()
+        return client
+    }
+
+    private fun command(id: Long, kind: Byte, body: DataOutputStream.() -> Unit): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).apply {
+            writeByte(BinaryCodec.OP_CHECK.toInt())
+            writeLong(id)
+            writeByte(kind.toInt())
+            body()
+            flush()
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun DataOutputStream.writeString(value: String) {
+        val bytes = value.toByteArray(StandardCharsets.UTF_8)
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun DataOutputStream.writeBigInteger(value: BigInteger) {
+        val bytes = value.toByteArray()
+        writeShort(bytes.size)
+        write(bytes)
+    }
+
+    companion object {
+        private val server = Server(BINARY_PORT, TestPlugins(listOf(TestPlugin())), ServerConfig(engine = SELECTOR_ENGINE, eventLoops = 1))
+
+        @JvmStatic
+        @BeforeAll
+        fun init() {
+            GlobalScope.launch {
+                server.go()
+            }
+        }
+
+        @JvmStatic
+        @AfterAll
+        fun destroy() {
+            server.stop()
+        }
+    }
+}
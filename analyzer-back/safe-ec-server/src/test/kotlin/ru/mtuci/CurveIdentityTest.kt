@@ -0,0 +1,75 @@
+package ru.mtuci
+
+import io.churchkey.ec.Curve
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.OID
+import ru.mtuci.plugins.Request.Params
+import ru.mtuci.plugins.Request.Params.Supplementary
+import java.math.BigInteger
+import java.security.spec.ECParameterSpec
+import java.security.spec.EllipticCurve
+
+class CurveIdentityTest {
+    @Test
+    fun testAliasesShareKey() {
+        val byName = Curves.canonicalize(Named("prime256v1"))
+        val byAlias = Curves.canonicalize(Named("secp256r1"))
+        val byOid = Curves.canonicalize(OID("1.2.840.10045.3.1.7"))
+        val byParams = Curves.canonicalize(Params(withoutSeed(Curve.nistp256.parameterSpec), Supplementary(null, null)))
+
+        assertEquals(byName.key, byAlias.key)
+        assertEquals(byName.key, byOid.key)
+        assertEquals(byName.key, byParams.key)
+
+        // Плагины получают одни и те же эталонные параметры независимо от формы запроса
+        val spec = (byName.request as Params).params
+        assertSame(spec, (byOid.request as Params).params)
+        assertSame(spec, (byParams.request as Params).params)
+    }
+
+    @Test
+    fun testDifferentCurves() {
+        assertNotEquals(Curves.canonicalize(Named("secp256k1")).key, Curves.canonicalize(Named("prime256v1")).key)
+    }
+
+    @Test
+    fun testUnknownName() {
+        val canonical = Curves.canonicalize(Named("no such curve"))
+        assertEquals(Named("no such curve"), canonical.key)
+        assertNull(canonical.curve)
+        assertTrue(canonical.request is Named)
+    }
+
+    @Test
+    fun testCustomSeedIsKeptApart() {
+        val spec = Curve.nistp256.parameterSpec
+        val curve = spec.curve
+        val seeded = ECParameterSpec(EllipticCurve(curve.field, curve.a, curve.b, byteArrayOf(1, 2, 3)), spec.generator, spec.order, spec.cofactor)
+
+        val canonical = Curves.canonicalize(Params(seeded, null))
+        assertEquals(Curves.canonicalize(Named("prime256v1")).curve, canonical.curve)
+        assertNotEquals(Curves.canonicalize(Named("prime256v1")).key, canonical.key)
+        assertSame(seeded, (canonical.request as Params).params)
+    }
+
+    @Test
+    fun testCurveIdIgnoresRepresentation() {
+        val spec = Curve.secp256k1.parameterSpec
+        val curve = spec.curve
+        val copy = ECParameterSpec(
+            EllipticCurve(curve.field, BigInteger(curve.a.toString()), BigInteger(curve.b.toString())),
+            spec.generator, spec.order, spec.cofactor
+        )
+        assertEquals(CurveId.of(spec), CurveId.of(copy))
+        assertEquals(32, CurveId.of(spec).toString().length)
+    }
+
+    private fun withoutSeed(spec: ECParameterSpec) =
+        ECParameterSpec(EllipticCurve(spec.curve.field, spec.curve.a, spec.curve.b), spec.generator, spec.order, spec.cofactor)
+}
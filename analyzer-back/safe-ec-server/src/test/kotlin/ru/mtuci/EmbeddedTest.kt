@@ -0,0 +1,105 @@
+package ru.mtuci
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.OID
+import ru.mtuci.plugins.Result
+import java.util.concurrent.TimeUnit
+
+const val EMBEDDED_PORT = 8006
+
+private val plugin = object : Plugin {
+    override fun priority() = Priority.NORMAL
+    override fun name() = "Name plugin"
+    override fun check(named: Named): Result = Result.validated("NAME", if (named.name.startsWith("bad")) "Bad name" else null)
+    override fun check(oid: OID): Result = Result.TechError("OID is not supported")
+}
+
+class EmbeddedTest {
+    @Test
+    fun testSameResponsesAsServer() {
+        val commands = listOf(
+            Command("1", "Name", "good"),
+            Command("2", "Name", "bad curve"),
+            Command("3", "OID", "1.2.3"),
+            Command("4", "unknown", "data"),
+        )
+
+        val remote = remote { client -> commands.map { client.check(it) } }
+        val embedded = Embedded(TestPlugins(listOf(plugin)), ServerConfig()).use { embedded ->
+            commands.map { embedded.check(it.id, it.type, it.value).get(10, TimeUnit.SECONDS) }
+        }
+
+        assertEquals(remote.map { listOf(it.reqId, it.type, it.rule, it.info) }, embedded.map { listOf(it.reqId, it.type, it.rule, it.info) })
+    }
+
+    /**
+     * Сравнение встроенного режима с сервером на loopback: -Dbenchmark=true. Кэш отключен, чтобы каждый запрос
+     * доходил до плагинов
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    fun benchmark() {
+        val count = 20_000
+        // Все запросы отправляются сразу, очереди должны их вместить без BUSY
+        val config = ServerConfig(cacheSize = 0, maxQueued = count, maxActiveQueued = count)
+        val commands = List(count) { Command("$it", "Name", "curve $it") }
+
+        repeat(2) { round ->
+            val remoteSequential = measure { remote(config) { client -> commands.forEach { client.check(it) } } }
+            val remotePipelined = measure {
+                remote(config) { client ->
+                    commands.forEach { client.send(Json.encodeToString(it)) }
+                    repeat(count) { client.receive() }
+                }
+            }
+            val (embeddedSequential, embeddedConcurrent) = Embedded(TestPlugins(listOf(plugin)), config).use { embedded ->
+                measure { commands.forEach { embedded.check(it.id, it.type, it.value).get() } } to
+                    measure { commands.map { embedded.check(it.id, it.type, it.value) }.forEach { it.get() } }
+            }
+
+            println("Round $round, $count requests")
+            report("remote, one by one", remoteSequential, count)
+            report("remote, pipelined", remotePipelined, count)
+            report("embedded, one by one", embeddedSequential, count)
+            report("embedded, concurrent", embeddedConcurrent, count)
+        }
+    }
+
+    private fun <T> remote(config: ServerConfig = ServerConfig(), action: (TestClient) -> T): T {
+        val server = Server(EMBEDDED_PORT, TestPlugins(listOf(plugin)), config)
+        GlobalScope.launch { server.go() }
+        val client = TestClient(EMBEDDED_PORT)
+        try {
+            client.open()
+            return action(client)
+        } finally {
+            client.close()
+            server.stop()
+        }
+    }
+
+    private fun TestClient.check(command: Command): Response {
+        send(Json.encodeToString(command))
+        return Json.decodeFromString(receive())
+    }
+
+    private fun measure(action: () -> Unit): Long {
+        val started = System.nanoTime()
+        action()
+        return System.nanoTime() - started
+    }
+
+    private fun report(name: String, nanos: Long, count: Int) {
+        println("  %-22s %8.1f us/request %10.0f requests/s".format(name, nanos / 1000.0 / count, count * 1e9 / nanos))
+    }
+}
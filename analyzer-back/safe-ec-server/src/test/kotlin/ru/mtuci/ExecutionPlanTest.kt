@@ -0,0 +1,50 @@
+package ru.mtuci
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+
+class ExecutionPlanTest {
+    @Test
+    fun testTiersOrder() {
+        val low = plugin("low", Priority.LOW)
+        val high = plugin("high", Priority.HIGH)
+        val normal1 = plugin("normal1", Priority.NORMAL)
+        val normal2 = plugin("normal2", Priority.NORMAL)
+
+        val plan = ExecutionPlan.of(listOf(low, normal1, high, normal2))
+
+        assertEquals(listOf(Priority.HIGH, Priority.NORMAL, Priority.LOW), plan.tiers.map { it.priority })
+        assertEquals(listOf(normal1, normal2), plan.tiers[1].plugins)
+        assertEquals(listOf(high, normal1, normal2, low), plan.plugins)
+    }
+
+    @Test
+    fun testFastPlan() {
+        val low = plugin("low", Priority.LOW)
+        val high = plugin("high", Priority.HIGH)
+        val plan = ExecutionPlan.of(listOf(low, high))
+
+        assertEquals(listOf(high), plan.fast.plugins)
+        assertEquals(listOf(Priority.HIGH), plan.fast.tiers.map { it.priority })
+        assertEquals(listOf(low), plan.slow.plugins)
+
+        val withoutLow = ExecutionPlan.of(listOf(high))
+        assertSame(withoutLow, withoutLow.fast)
+    }
+
+    @Test
+    fun testEmpty() {
+        assertTrue(ExecutionPlan.of(emptyList()).tiers.isEmpty())
+        assertTrue(ExecutionPlan.EMPTY.plugins.isEmpty())
+    }
+
+    private fun plugin(name: String, priority: Priority) = object : Plugin {
+        override fun priority() = priority
+        override fun name() = name
+    }
+}
@@ -0,0 +1,44 @@
+package ru.mtuci
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import ru.mtuci.engine.FrameDecoder
+import ru.mtuci.engine.FrameTooLargeException
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+class FrameDecoderTest {
+    private val frames = mutableListOf<String>()
+    private val onFrame: (ByteArray) -> Unit = { frames += String(it, StandardCharsets.US_ASCII) }
+
+    @Test
+    fun testSplitAcrossChunks() {
+        val decoder = FrameDecoder(1024)
+        decoder.decode(chunk("abc\$de"), onFrame)
+        decoder.decode(chunk("f\$\$"), onFrame)
+        decoder.decode(chunk("tail"), onFrame)
+        decoder.finish(onFrame)
+
+        assertEquals(listOf("abc", "def", "", "tail"), frames)
+    }
+
+    @Test
+    fun testZeroBytesSkipped() {
+        val decoder = FrameDecoder(1024)
+        decoder.decode(ByteBuffer.wrap(byteArrayOf('a'.code.toByte(), 0, 'b'.code.toByte(), '$'.code.toByte())), onFrame)
+
+        assertEquals(listOf("ab"), frames)
+    }
+
+    @Test
+    fun testFrameTooLarge() {
+        val decoder = FrameDecoder(8)
+        decoder.decode(chunk("12345678\$"), onFrame)
+        assertThrows(FrameTooLargeException::class.java) { decoder.decode(chunk("1234"), onFrame); decoder.decode(chunk("56789"), onFrame) }
+
+        assertEquals(listOf("12345678"), frames)
+    }
+
+    private fun chunk(data: String) = ByteBuffer.wrap(data.toByteArray(StandardCharsets.US_ASCII))
+}
@@ -0,0 +1,51 @@
+package ru.mtuci
+
+import kotlinx.serialization.json.double
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import kotlinx.serialization.json.long
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Metrics
+
+class MetricsTest {
+    @Test
+    fun testHistogramPercentiles() {
+        val histogram = Metrics.Histogram()
+        (1..100).forEach { histogram.record(it * 1_000_000L) }
+
+        assertEquals(100, histogram.count())
+        assertWithin(50_000_000, histogram.percentile(0.5))
+        assertWithin(90_000_000, histogram.percentile(0.9))
+        assertEquals(100_000_000, histogram.percentile(1.0))
+        assertEquals(0, Metrics.Histogram().percentile(0.5))
+    }
+
+    @Test
+    fun testSmallValues() {
+        val histogram = Metrics.Histogram()
+        listOf(0L, 1L, 2L, 3L, -5L).forEach { histogram.record(it) }
+
+        assertEquals(0, histogram.percentile(0.2))
+        assertEquals(3, histogram.percentile(1.0))
+    }
+
+    @Test
+    fun testStatsJson() {
+        Metrics.counter("test.stats.hits").add(3)
+        Metrics.counter("test.stats.misses").increment()
+        Metrics.histogram("test.stats.time").record(2_000_000)
+
+        val stats = statsJson(VerdictCacheStats(1, 1, 0, 0, 1), 5, 0, 0, 0)
+
+        assertEquals(3, stats["counters"]!!.jsonObject["test.stats.hits"]!!.jsonPrimitive.long)
+        assertEquals(0.75, stats["hitRatios"]!!.jsonObject["test.stats"]!!.jsonPrimitive.double)
+        assertEquals(0.5, stats["hitRatios"]!!.jsonObject["verdictCache"]!!.jsonPrimitive.double)
+        assertEquals(1, stats["histograms"]!!.jsonObject["test.stats.time"]!!.jsonObject["count"]!!.jsonPrimitive.long)
+        assertEquals(5, stats["singleFlight"]!!.jsonObject["coalesced"]!!.jsonPrimitive.long)
+    }
+
+    private fun assertWithin(expected: Long, actual: Long) =
+        assertTrue(actual >= expected && actual <= expected * 5 / 4, "$actual is not within 25% above $expected")
+}
@@ -0,0 +1,114 @@
+package ru.mtuci
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Result
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+
+const val PEER_PORT = 8007
+const val OTHER_PEER_PORT = 8008
+
+class PeersTest {
+    class SlowPlugin : Plugin {
+        val calls = AtomicInteger()
+
+        override fun priority() = Priority.LOW
+        override fun name() = "Slow plugin"
+        override fun check(named: Named): Result {
+            calls.incrementAndGet()
+            return Result.validated("SLOW", "Found by slow plugin")
+        }
+    }
+
+    @Test
+    fun testVerdictShared() {
+        val first = SlowPlugin()
+        val second = SlowPlugin()
+        val firstServer = Server(PEER_PORT, TestPlugins(listOf(first)), ServerConfig(peers = listOf("localhost:$OTHER_PEER_PORT")))
+        val secondServer = Server(OTHER_PEER_PORT, TestPlugins(listOf(second)), ServerConfig(peers = listOf("localhost:$PEER_PORT")))
+        GlobalScope.launch { firstServer.go() }
+        GlobalScope.launch { secondServer.go() }
+        try {
+            assertEquals(VULNERABLE, check(PEER_PORT, "curve").type)
+            assertEquals(1, first.calls.get())
+
+            // Второй сервер получает вердикт от первого - рассылкой или поиском перед плагинами LOW
+            val response = check(OTHER_PEER_PORT, "curve")
+            assertEquals(VULNERABLE, response.type)
+            assertEquals("SLOW", response.rule)
+            assertEquals(0, second.calls.get())
+        } finally {
+            firstServer.stop()
+            secondServer.stop()
+        }
+    }
+
+    @Test
+    fun testPeerUnavailable() {
+        val plugin = SlowPlugin()
+        val server = Server(PEER_PORT, TestPlugins(listOf(plugin)), ServerConfig(peers = listOf("localhost:$OTHER_PEER_PORT")))
+        GlobalScope.launch { server.go() }
+        try {
+            assertEquals(VULNERABLE, check(PEER_PORT, "curve").type)
+            assertEquals(1, plugin.calls.get())
+        } finally {
+            server.stop()
+        }
+    }
+
+    @Test
+    fun testVerdictFromClientRejected() {
+        val plugin = SlowPlugin()
+        val store = Files.createTempFile("verdicts", ".log")
+        // Сосед на адресе из TEST-NET: локальный клиент соседом не является
+        val config = ServerConfig(peers = listOf("192.0.2.1:$OTHER_PEER_PORT"), storeFile = store.toString())
+        val server = Server(PEER_PORT, TestPlugins(listOf(plugin)), config)
+        GlobalScope.launch { server.go() }
+        try {
+            val verdict = PeerVerdict(TestPlugins(listOf(plugin)).plan.fingerprint, "n:curve", "Validated")
+            assertEquals(ERROR, send(PEER_PORT, Command("1", VERDICT, Json.encodeToString(verdict))).type)
+            assertEquals(ERROR, send(PEER_PORT, Command("2", LOOKUP, Json.encodeToString(PeerVerdict(verdict.fingerprint, "n:curve")))).type)
+
+            // Присланный вердикт не подменил проверку
+            assertEquals(VULNERABLE, check(PEER_PORT, "curve").type)
+            assertEquals(1, plugin.calls.get())
+        } finally {
+            server.stop()
+            Files.deleteIfExists(store)
+        }
+    }
+
+    @Test
+    fun testVerdictWithoutPeersRejected() {
+        val server = Server(PEER_PORT, TestPlugins(listOf(SlowPlugin())))
+        GlobalScope.launch { server.go() }
+        try {
+            val verdict = PeerVerdict(TestPlugins(emptyList()).plan.fingerprint, "n:curve", "Validated")
+            assertEquals(ERROR, send(PEER_PORT, Command("1", VERDICT, Json.encodeToString(verdict))).type)
+        } finally {
+            server.stop()
+        }
+    }
+
+    private fun check(port: Int, name: String): Response = send(port, Command("1", "Name", name))
+
+    private fun send(port: Int, command: Command): Response {
+        val client = TestClient(port)
+        try {
+            client.open()
+            client.send(Json.encodeToString(command))
+            return Json.decodeFromString(client.receive())
+        } finally {
+            client.close()
+        }
+    }
+}
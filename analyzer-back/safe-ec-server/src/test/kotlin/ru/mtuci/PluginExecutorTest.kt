@@ -0,0 +1,267 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Events
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Profile
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Result
+import ru.mtuci.plugins.Result.Vulnerable
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class PluginExecutorTest {
+    private val request = Named("test")
+
+    @Test
+    fun testTierRunsConcurrently() = runBlocking {
+        val plan = ExecutionPlan.of(List(3) { plugin("slow$it", Priority.LOW, 500) { Result.Validated() } })
+
+        val started = System.nanoTime()
+        val result = PluginExecutor(true, lowThreads = 3).run(request, plan)
+        val elapsedMillis = (System.nanoTime() - started) / 1_000_000
+
+        assertTrue(result is Result.Validated)
+        assertTrue(elapsedMillis < 1000, "Took $elapsedMillis ms")
+    }
+
+    @Test
+    fun testVulnerableCancelsSiblings() = runBlocking {
+        val interrupted = CountDownLatch(1)
+        val slow = object : Plugin {
+            override fun check(named: Named): Result {
+                try {
+                    Thread.sleep(10_000)
+                } catch (e: InterruptedException) {
+                    interrupted.countDown()
+                    throw e
+                }
+                return Result.Validated()
+            }
+
+            override fun priority() = Priority.LOW
+            override fun name() = "slow"
+        }
+        val plan = ExecutionPlan.of(listOf(slow, plugin("fast", Priority.LOW, 50) { Result.validated("RULE", "bad") }))
+
+        val started = System.nanoTime()
+        val result = PluginExecutor(true, lowThreads = 2).run(request, plan)
+        val elapsedMillis = (System.nanoTime() - started) / 1_000_000
+
+        assertTrue(result is Vulnerable)
+        assertEquals("RULE", (result as Vulnerable).rule)
+        assertTrue(elapsedMillis < 5000, "Took $elapsedMillis ms")
+        // Результат возвращается, не дожидаясь отмененного плагина, interrupt доходит до него чуть позже
+        assertTrue(interrupted.await(2, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun testDeterministicChoice() = runBlocking {
+        // Ошибка приходит раньше, но уязвимость важнее, если плагин успел завершиться
+        val plan = ExecutionPlan.of(listOf(
+            plugin("error", Priority.NORMAL, 0) { Result.TechError("error") },
+            plugin("vulnerable", Priority.NORMAL, 0) { Result.validated("RULE", "bad") },
+        ))
+
+        repeat(20) {
+            val result = PluginExecutor(true).run(request, plan)
+            assertTrue(result is Vulnerable || result is Result.TechError)
+        }
+        assertTrue(PluginExecutor(false).run(request, plan) is Result.TechError)
+    }
+
+    @Test
+    fun testNextTierSkipped() = runBlocking {
+        val lowCalled = AtomicBoolean()
+        val plan = ExecutionPlan.of(listOf(
+            plugin("high", Priority.HIGH, 0) { Result.validated("RULE", "bad") },
+            plugin("low", Priority.LOW, 0) { lowCalled.set(true); Result.Validated() },
+        ))
+
+        assertTrue(PluginExecutor(true).run(request, plan) is Vulnerable)
+        assertTrue(!lowCalled.get())
+    }
+
+    @Test
+    fun testLowPluginsDoNotBlockFastOnes() = runBlocking {
+        val executor = PluginExecutor(false, threads = 1, lowThreads = 1)
+        try {
+            val low = ExecutionPlan.of(listOf(plugin("low", Priority.LOW, 1000) { Result.Validated() }))
+            val high = ExecutionPlan.of(listOf(plugin("high", Priority.HIGH, 0) { Result.Validated() }))
+            val heavy = List(3) { async(Dispatchers.IO) { executor.run(request, low) } }
+            delay(100)
+            val lowPool = executor.pools.first { it.name == "low" }
+            assertEquals(1, lowPool.active)
+            assertEquals(2, lowPool.queued)
+            assertEquals(1.0, lowPool.utilisation)
+
+            // Пул LOW занят на три секунды, а плагину HIGH поток достается сразу
+            val started = System.nanoTime()
+            assertTrue(executor.run(request, high) is Result.Validated)
+            val elapsedMillis = (System.nanoTime() - started) / 1_000_000
+            assertTrue(elapsedMillis < 500, "Took $elapsedMillis ms")
+            heavy.forEach { it.await() }
+        } finally {
+            executor.stop()
+        }
+    }
+
+    @Test
+    fun testBudgetExceeded() = runBlocking {
+        val plan = ExecutionPlan.of(listOf(plugin("slow", Priority.LOW, 5000) { Result.Validated() }))
+
+        val started = System.nanoTime()
+        val result = PluginExecutor(false, 200).run(request, plan)
+        val elapsedMillis = (System.nanoTime() - started) / 1_000_000
+
+        assertTrue(result is Result.TechError)
+        assertTrue(elapsedMillis < 1000, "Took $elapsedMillis ms")
+        assertTrue(PluginExecutor(false, 200, true).run(request, plan) is Result.Undefined)
+    }
+
+    @Test
+    fun testBudgetMissIsIncomplete() = runBlocking {
+        val executor = PluginExecutor(true, 200, true, lowThreads = 2)
+        val slow = plugin("slow", Priority.LOW, 5000) { Result.Validated() }
+
+        val outcome = executor.execute(request, ExecutionPlan.of(listOf(slow, plugin("fast", Priority.LOW, 0) { Result.Validated() })))
+        assertTrue(outcome.result is Result.Validated)
+        assertFalse(outcome.complete)
+
+        // Уязвимость, найденная следующим плагином, окончательна
+        val plan = ExecutionPlan.of(listOf(slow, plugin("vulnerable", Priority.LOW, 0) { Vulnerable("RULE", "found") }))
+        val vulnerable = PluginExecutor(false, 200, true).execute(request, plan)
+        assertTrue(vulnerable.result is Vulnerable)
+        assertTrue(vulnerable.complete)
+
+        assertTrue(executor.execute(request, ExecutionPlan.of(listOf(plugin("fast", Priority.LOW, 0) { Result.Validated() }))).complete)
+    }
+
+    @Test
+    fun testIncompleteResultNotRemembered() = runBlocking {
+        val calls = AtomicInteger()
+        val slow = plugin("slow", Priority.LOW, 0) {
+            // Первый вызов не укладывается в бюджет
+            if (calls.incrementAndGet() == 1)
+                Thread.sleep(5000)
+            Result.Validated()
+        }
+        val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+        val checker = Checker(TestPlugins(listOf(slow)), ServerConfig(pluginTimeoutMillis = 200, pluginTimeoutUndefined = true), scope)
+        try {
+            assertEquals(SUCCESS, checker.evaluate(Command("1", "Name", "curve")).type)
+            assertEquals(SUCCESS, checker.evaluate(Command("2", "Name", "curve")).type)
+            assertEquals(2, calls.get())
+
+            // Полный результат кэшируется
+            assertEquals(SUCCESS, checker.evaluate(Command("3", "Name", "curve")).type)
+            assertEquals(2, calls.get())
+        } finally {
+            checker.stop()
+            scope.cancel()
+        }
+    }
+
+    @Test
+    fun testCancelledWithoutWaitingForPlugin() = runBlocking {
+        // Плагин не реагирует на interrupt, но ждать его окончания после отмены не нужно
+        val busy = object : Plugin {
+            override fun check(named: Named): Result {
+                val until = System.nanoTime() + 3_000_000_000
+                while (System.nanoTime() < until)
+                    Thread.onSpinWait()
+                return Result.Validated()
+            }
+
+            override fun priority() = Priority.LOW
+            override fun name() = "busy"
+        }
+
+        val started = System.nanoTime()
+        val result = withTimeoutOrNull(200) { PluginExecutor(false).run(request, ExecutionPlan.of(listOf(busy))) }
+        val elapsedMillis = (System.nanoTime() - started) / 1_000_000
+
+        assertEquals(null, result)
+        assertTrue(elapsedMillis < 1000, "Took $elapsedMillis ms")
+    }
+
+    @Test
+    fun testProfile() = runBlocking {
+        val plan = ExecutionPlan.of(listOf(
+            plugin("high", Priority.HIGH, 0) { Result.Validated() },
+            plugin("low", Priority.LOW, 50) {
+                Profile.record("factor", 1_000_000, "cache")
+                Result.validated("RULE", "bad")
+            },
+        ))
+        val profile = Profile()
+
+        assertTrue(PluginExecutor(true).run(request, plan, profile) is Vulnerable)
+        val entries = profile.entries()
+        assertEquals(listOf("plugin.high", "factor", "plugin.low"), entries.map { it.name })
+        assertEquals(listOf("Validated", "cache", "Vulnerable: RULE"), entries.map { it.detail })
+        assertTrue(entries.last().nanos >= 50_000_000)
+        // Вне проверки текущего профиля нет, запись никуда не попадает
+        Profile.record("factor", 1, null)
+        assertEquals(null, Profile.current())
+        assertEquals(3, profile.entries().size)
+    }
+
+    @Test
+    fun testPluginEvents() = runBlocking {
+        val plan = ExecutionPlan.of(listOf(
+            plugin("high", Priority.HIGH, 0) { Result.Validated() },
+            plugin("low", Priority.LOW, 0) {
+                assertEquals("42", Events.requestId())
+                Result.validated("RULE", "bad")
+            },
+        ))
+
+        val file = Files.createTempFile("plugins", ".jfr")
+        try {
+            Recording().use { recording ->
+                recording.enable(Events.PluginInvocation::class.java)
+                recording.start()
+                assertTrue(PluginExecutor(false).run(request, plan, id = "42") is Vulnerable)
+                recording.stop()
+                recording.dump(file)
+            }
+
+            val events = RecordingFile.readAllEvents(file).filter { it.eventType.name == "ru.mtuci.PluginInvocation" }
+            assertEquals(setOf("high" to "Validated", "low" to "Vulnerable"), events.map { it.getString("plugin") to it.getString("result") }.toSet())
+            assertTrue(events.all { it.getString("requestId") == "42" })
+            assertEquals(null, Events.requestId())
+        } finally {
+            Files.delete(file)
+        }
+    }
+
+    private fun plugin(name: String, priority: Priority, sleepMillis: Long, result: () -> Result) = object : Plugin {
+        override fun check(named: Named): Result {
+            if (sleepMillis > 0)
+                Thread.sleep(sleepMillis)
+            return result()
+        }
+
+        override fun priority() = priority
+        override fun name() = name
+    }
+}
@@ -0,0 +1,127 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Plugins
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+
+class PluginsTest {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val dir = Files.createTempDirectory("plugins")
+
+    @AfterEach
+    fun tearDown() {
+        scope.cancel()
+        dir.toFile().deleteRecursively()
+    }
+
+    @Test
+    fun testLoadsExistingJars() {
+        Files.write(dir.resolve("test.jar"), jar())
+        val plugins = Plugins(dir.toString())
+        assertEquals(listOf("Test plugin"), plugins.list.map { it.name() })
+        plugins.stop()
+    }
+
+    @Test
+    fun testFingerprintOfLoadedJar() {
+        val file = dir.resolve("test.jar")
+        Files.write(file, jar())
+        val plugins = Plugins(dir.toString(), watch = false)
+        val fingerprint = plugins.plan.fingerprint
+
+        // jar заменили, но загружен прежний: отпечаток не меняется, пока jar не загрузят заново
+        Files.write(file, jar("other"))
+        assertEquals(fingerprint, plugins.plan.fingerprint)
+        assertNotEquals(fingerprint, Plugins(dir.toString(), watch = false).plan.fingerprint)
+        plugins.stop()
+    }
+
+    @Test
+    fun testNotWatched() = runBlocking {
+        Files.write(dir.resolve("test.jar"), jar())
+        val plugins = Plugins(dir.toString(), 100, watch = false)
+        // Монитор без отслеживания сразу возвращается, новые jar-файлы не загружаются
+        withTimeout(1000) { plugins.monitor() }
+        Files.write(dir.resolve("other.jar"), jar())
+        delay(300)
+        assertEquals(listOf("Test plugin"), plugins.list.map { it.name() })
+        plugins.stop()
+    }
+
+    @Test
+    fun testReloadIsDebounced() = runBlocking {
+        val plugins = Plugins(dir.toString(), 300)
+        scope.launch { plugins.monitor() }
+        val plans = observe(plugins)
+        delay(100)
+
+        // Копирование по частям: несколько событий подряд, недописанный файл загрузиться не может
+        val jar = jar()
+        val file = dir.resolve("test.jar")
+        Files.write(file, jar.copyOf(jar.size / 2))
+        repeat(3) {
+            delay(50)
+            Files.write(file, jar)
+        }
+        delay(1000)
+
+        assertEquals(listOf("Test plugin"), plugins.list.map { it.name() })
+        assertEquals(1, synchronized(plans) { plans.size }, "Plans: $plans")
+
+        Files.delete(file)
+        delay(1000)
+        assertTrue(plugins.list.isEmpty())
+        assertEquals(2, synchronized(plans) { plans.size }, "Plans: $plans")
+        plugins.stop()
+    }
+
+    /**
+     * Все планы, которые публиковал [plugins] после вызова
+     */
+    private fun observe(plugins: Plugins): List<ExecutionPlan> {
+        val plans = ArrayList<ExecutionPlan>()
+        var last = plugins.plan
+        scope.launch {
+            while (true) {
+                val plan = plugins.plan
+                if (plan !== last) {
+                    synchronized(plans) { plans += plan }
+                    last = plan
+                }
+                delay(5)
+            }
+        }
+        return plans
+    }
+
+    /**
+     * jar только с описанием сервиса: сам класс плагина загрузчик jar-файла находит у родителя
+     */
+    private fun jar(comment: String? = null): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        JarOutputStream(bytes).use {
+            it.putNextEntry(JarEntry("META-INF/services/${Plugin::class.java.name}"))
+            it.write("${TestPlugin::class.java.name}\n".toByteArray())
+            it.closeEntry()
+            it.setComment(comment)
+        }
+        return bytes.toByteArray()
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mtuci
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Result
+import java.util.concurrent.atomic.AtomicInteger
+
+const val PROGRESSIVE_PORT = 8004
+
+class ProgressiveTest {
+    @Test
+    fun testProvisionalThenFinal() {
+        val fastCalls = AtomicInteger()
+        val fast = object : Plugin {
+            override fun priority() = Priority.HIGH
+            override fun name() = "Fast plugin"
+            override fun check(named: Named): Result = Result.Validated().also { fastCalls.incrementAndGet() }
+        }
+        val slow = object : Plugin {
+            override fun priority() = Priority.LOW
+            override fun name() = "Slow plugin"
+            override fun check(named: Named): Result {
+                Thread.sleep(1000)
+                return Result.validated("SLOW", "Found by slow plugin")
+            }
+        }
+        val server = Server(PROGRESSIVE_PORT, TestPlugins(listOf(fast, slow)))
+        GlobalScope.launch { server.go() }
+        val client = TestClient(PROGRESSIVE_PORT)
+        try {
+            client.open()
+            val started = System.nanoTime()
+            client.send(Json.encodeToString(Command("1", "Name", "curve", progressive = true)))
+
+            val provisional = Json.decodeFromString<Response>(client.receive())
+            assertEquals("1", provisional.reqId)
+            assertEquals(SUCCESS, provisional.type)
+            assertTrue(provisional.provisional)
+            assertTrue((System.nanoTime() - started) / 1_000_000 < 500)
+
+            val final = Json.decodeFromString<Response>(client.receive())
+            assertEquals("1", final.reqId)
+            assertEquals(VULNERABLE, final.type)
+            assertFalse(final.provisional)
+            // Быстрые уровни в фоне не повторяются
+            assertEquals(1, fastCalls.get())
+
+            // Окончательный вердикт попал в кэш, повторный запрос отвечается сразу и без предварительного ответа
+            client.send(Json.encodeToString(Command("2", "Name", "curve", progressive = true)))
+            val cached = Json.decodeFromString<Response>(client.receive())
+            assertEquals(VULNERABLE, cached.type)
+            assertFalse(cached.provisional)
+        } finally {
+            client.close()
+            server.stop()
+        }
+    }
+}
@@ -5,8 +5,12 @@ import kotlinx.coroutines.launch
 import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import kotlinx.serialization.json.long
 import org.junit.jupiter.api.AfterAll
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeAll
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
@@ -61,17 +65,81 @@ class ProtocolTest {
         client.send(Json.encodeToString(Command("2", "Name", "data")))
         client.send(Json.encodeToString(Command("3", "Name", "data")))
 
-        var response = client.receive()
-        var decoded = Json.decodeFromString<Response>(response)
-        assertEquals("1", decoded.reqId)
+        // Команды выполняются параллельно, порядок ответов не гарантируется
+        val ids = List(3) { Json.decodeFromString<Response>(client.receive()).reqId }
+        assertEquals(setOf("1", "2", "3"), ids.toSet())
+    }
+
+    @Test
+    fun testOutOfOrder() {
+        `when`(testPlugin.check(any(Named::class.java))).thenAnswer {
+            if (it.getArgument<Named>(0).name == "slow")
+                Thread.sleep(1000)
+            Result.Validated()
+        }
+
+        client.send(Json.encodeToString(Command("1", "Name", "slow")))
+        client.send(Json.encodeToString(Command("2", "Name", "fast")))
+
+        assertEquals("2", Json.decodeFromString<Response>(client.receive()).reqId)
+        assertEquals("1", Json.decodeFromString<Response>(client.receive()).reqId)
+    }
+
+    @Test
+    fun testBatch() {
+        `when`(testPlugin.check(any(Named::class.java))).thenAnswer { Result.Validated() }
 
-        response = client.receive()
-        decoded = Json.decodeFromString<Response>(response)
-        assertEquals("2", decoded.reqId)
+        val items = listOf(Command("11", "Name", "first"), Command("12", "Name", "second"), Command("13", "anyOther", "data"))
+        client.send(Json.encodeToString(Command("10", BATCH, items = items)))
+
+        // На каждую проверку пакета свой ответ с ее id
+        val responses = List(3) { Json.decodeFromString<Response>(client.receive()) }.associateBy { it.reqId }
+        assertEquals(setOf("11", "12", "13"), responses.keys)
+        assertEquals(SUCCESS, responses["11"]!!.type)
+        assertEquals(SUCCESS, responses["12"]!!.type)
+        assertEquals(ERROR, responses["13"]!!.type)
+
+        verify(testPlugin, times(2)).check(any(Named::class.java))
+    }
 
-        response = client.receive()
-        decoded = Json.decodeFromString<Response>(response)
-        assertEquals("3", decoded.reqId)
+    @Test
+    fun testDeadline() {
+        `when`(testPlugin.check(any(Named::class.java))).thenAnswer {
+            Thread.sleep(2000)
+            Result.Validated()
+        }
+
+        val started = System.nanoTime()
+        client.send(Json.encodeToString(Command("1", "Name", "slow", timeout = 200)))
+        val decoded = Json.decodeFromString<Response>(client.receive())
+
+        assertEquals(ERROR, decoded.type)
+        assertEquals("Deadline exceeded", decoded.info)
+        assertTrue((System.nanoTime() - started) / 1_000_000 < 1500)
+    }
+
+    @Test
+    fun testStats() {
+        client.send(Json.encodeToString(Command("1", "Name", "data")))
+        client.receive()
+
+        client.send(Json.encodeToString(Command("2", STATS)))
+        val decoded = Json.decodeFromString<Response>(client.receive())
+        assertEquals(SUCCESS, decoded.type)
+        val stats = Json.parseToJsonElement(decoded.info!!).jsonObject
+        assertTrue(stats["counters"]!!.jsonObject["requests.Name"]!!.jsonPrimitive.long > 0)
+        assertTrue(stats["histograms"]!!.jsonObject.containsKey("requests.time"))
+    }
+
+    @Test
+    fun testUnknownTypeHasNoOwnCounter() {
+        client.send(Json.encodeToString(Command("1", "Unknown-${System.nanoTime()}", "data")))
+        assertEquals(ERROR, Json.decodeFromString<Response>(client.receive()).type)
+
+        client.send(Json.encodeToString(Command("2", STATS)))
+        val counters = Json.parseToJsonElement(Json.decodeFromString<Response>(client.receive()).info!!).jsonObject["counters"]!!.jsonObject
+        assertTrue(counters["requests.other"]!!.jsonPrimitive.long > 0)
+        assertTrue(counters.keys.none { it.startsWith("requests.Unknown") })
     }
 
     @BeforeEach
@@ -82,7 +150,8 @@ class ProtocolTest {
     companion object {
         private val testPlugin = spy(TestPlugin())
         private val client = TestClient(PORT)
-        private val server = spy(Server(PORT, TestPlugins(listOf(testPlugin))))
+        // Ответы плагина подменяются в каждом тесте, поэтому кэш вердиктов отключен
+        private val server = spy(Server(PORT, TestPlugins(listOf(testPlugin)), ServerConfig(cacheSize = 0)))
 
         @JvmStatic
         @BeforeAll
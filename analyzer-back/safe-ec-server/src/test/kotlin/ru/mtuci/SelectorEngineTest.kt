@@ -0,0 +1,62 @@
+package ru.mtuci
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import ru.mtuci.engine.SELECTOR_ENGINE
+
+const val SELECTOR_PORT = 8001
+
+class SelectorEngineTest {
+    @Test
+    fun testManyClients() = runBlocking {
+        val clients = List(200) { TestClient(SELECTOR_PORT).apply { open() } }
+        clients.mapIndexed { i, client ->
+            async(Dispatchers.IO) {
+                client.send(Json.encodeToString(Command("$i", "Name", "data")))
+                val decoded = Json.decodeFromString<Response>(client.receive())
+                assertEquals("$i", decoded.reqId)
+                assertEquals(SUCCESS, decoded.type)
+            }
+        }.awaitAll()
+        clients.forEach { it.close() }
+    }
+
+    @Test
+    fun testMultiple() {
+        val client = TestClient(SELECTOR_PORT)
+        client.open()
+        repeat(3) { client.send(Json.encodeToString(Command("$it", "Name", "data"))) }
+        val ids = List(3) { Json.decodeFromString<Response>(client.receive()).reqId }
+        assertEquals(setOf("0", "1", "2"), ids.toSet())
+        client.close()
+    }
+
+    companion object {
+        private val server = Server(SELECTOR_PORT, TestPlugins(listOf(TestPlugin())), ServerConfig(engine = SELECTOR_ENGINE, eventLoops = 2))
+
+        @JvmStatic
+        @BeforeAll
+        fun init() {
+            GlobalScope.launch {
+                server.go()
+            }
+        }
+
+        @JvmStatic
+        @AfterAll
+        fun destroy() {
+            server.stop()
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+class SingleFlightTest {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val flights = SingleFlight<String, Int>(scope)
+    private val calls = AtomicInteger()
+
+    @Test
+    fun testConcurrentCallsCoalesced() = runBlocking {
+        val results = List(10) {
+            async(Dispatchers.IO) {
+                flights.run("curve") {
+                    delay(300)
+                    calls.incrementAndGet()
+                }
+            }
+        }.awaitAll()
+
+        assertEquals(1, calls.get())
+        assertEquals(List(10) { 1 }, results)
+        assertEquals(9L, flights.coalescedCount)
+        assertEquals(0, flights.inFlight)
+
+        // Завершенное вычисление не запоминается
+        assertEquals(2, flights.run("curve") { calls.incrementAndGet() })
+    }
+
+    @Test
+    fun testDifferentKeys() = runBlocking {
+        listOf("a", "b").map { key -> async(Dispatchers.IO) { flights.run(key) { delay(100); calls.incrementAndGet() } } }.awaitAll()
+
+        assertEquals(2, calls.get())
+        assertEquals(0L, flights.coalescedCount)
+    }
+
+    @Test
+    fun testFailureSharedAndReleased() = runBlocking {
+        val failed = List(3) {
+            async(Dispatchers.IO) {
+                runCatching { flights.run("bad") { delay(200); throw IllegalStateException("boom") } }
+            }
+        }.awaitAll()
+
+        failed.forEach { assertEquals("boom", it.exceptionOrNull()?.message) }
+        assertEquals(0, flights.inFlight)
+        assertEquals(5, flights.run("bad") { 5 })
+    }
+
+    @Test
+    fun testCallerCancellationKeepsFlight() = runBlocking {
+        // Первый клиент отключается, не дождавшись результата, второй получает его
+        val first = async(Dispatchers.IO) { withTimeout(100) { flights.run("curve") { delay(300); calls.incrementAndGet() } } }
+        delay(50)
+        val second = async(Dispatchers.IO) { flights.run("curve") { calls.incrementAndGet() } }
+
+        assertThrows(Exception::class.java) { runBlocking { first.await() } }
+        assertEquals(1, second.await())
+        assertEquals(1, calls.get())
+    }
+
+    @Test
+    fun testAbandonedFlightCancelled() = runBlocking {
+        val finished = AtomicInteger()
+        val waiters = List(2) {
+            async(Dispatchers.IO) { withTimeout(100) { flights.run("curve") { delay(300); finished.incrementAndGet() } } }
+        }
+        waiters.forEach { assertThrows(Exception::class.java) { runBlocking { it.await() } } }
+        delay(400)
+
+        assertEquals(0, finished.get())
+        assertEquals(0, flights.inFlight)
+    }
+
+    @AfterEach
+    fun destroy() {
+        scope.cancel()
+    }
+}
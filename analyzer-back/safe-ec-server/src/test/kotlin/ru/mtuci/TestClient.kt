@@ -1,10 +1,11 @@
 package ru.mtuci
 
 import org.slf4j.LoggerFactory
-import java.io.BufferedInputStream
+import ru.mtuci.engine.FrameDecoder
 import java.io.BufferedOutputStream
 import java.net.InetAddress
 import java.net.Socket
+import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
 import java.util.Base64
 
@@ -12,6 +13,9 @@ private val log = LoggerFactory.getLogger("ru.mtuci.TestClient");
 
 class TestClient(private val port: Int) {
     private lateinit var socket: Socket
+    private val decoder = FrameDecoder(1024 * 1024)
+    private val buffer = ByteBuffer.allocate(8192)
+    private val frames = ArrayDeque<ByteArray>()
 
     fun send(data: String) {
         if (socket.isClosed)
@@ -30,11 +34,7 @@ class TestClient(private val port: Int) {
     }
     
     fun receive(): String {
-        if (socket.isClosed)
-            open()
-
-        val input = socket.getInputStream()
-        val response = input.readUntil("$")
+        val response = nextFrame()?.let { String(it, StandardCharsets.US_ASCII) } ?: ""
         log.debug("Got response: {}", response)
         if (response.isEmpty())
             return ""
@@ -43,6 +43,42 @@ class TestClient(private val port: Int) {
         log.debug("Decoded response: {}", decoded)
         return decoded
     }
+
+    /**
+     * Отправка кадра протокола v2, префикс длины добавляется здесь
+     */
+    fun sendBinary(body: ByteArray) {
+        val out = BufferedOutputStream(socket.getOutputStream())
+        out.write(ByteBuffer.allocate(4).putInt(body.size).array())
+        out.write(body)
+        out.flush()
+    }
+
+    fun receiveBinary(): ByteBuffer? = nextFrame()?.let { ByteBuffer.wrap(it) }
+
+    /**
+     * Дальнейшие ответы ожидаются в формате протокола v2
+     */
+    fun useBinary() {
+        decoder.lengthPrefixed = true
+    }
+
+    private fun nextFrame(): ByteArray? {
+        if (socket.isClosed)
+            open()
+
+        val input = socket.getInputStream()
+        while (frames.isEmpty()) {
+            val read = input.read(buffer.array())
+            if (read == -1) {
+                decoder.finish(frames::addLast)
+                break
+            }
+            buffer.position(0).limit(read)
+            decoder.decode(buffer, frames::addLast)
+        }
+        return frames.removeFirstOrNull()
+    }
     
     fun open() {
         socket = Socket(InetAddress.getLocalHost(), port)
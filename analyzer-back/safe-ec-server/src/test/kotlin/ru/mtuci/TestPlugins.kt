@@ -1,9 +1,11 @@
 package ru.mtuci
 
+import ru.mtuci.plugins.ExecutionPlan
 import ru.mtuci.plugins.IPlugins
 import ru.mtuci.plugins.Plugin
 
 class TestPlugins(override val list: List<Plugin>) : IPlugins {
+    override val plan = ExecutionPlan.of(list)
     override suspend fun monitor() {}
     override fun stop() {}
-}
\ No newline at end of file
+}
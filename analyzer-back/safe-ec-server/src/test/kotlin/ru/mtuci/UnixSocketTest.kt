@@ -0,0 +1,47 @@
+package ru.mtuci
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Test
+import java.net.UnixDomainSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.Base64
+
+const val UNIX_SOCKET_PORT = 8005
+
+class UnixSocketTest {
+    @Test
+    fun testCheckOverUnixSocket() {
+        val path = Files.createTempDirectory("safe-ec").resolve("safe-ec.sock")
+        val server = Server(UNIX_SOCKET_PORT, TestPlugins(listOf(TestPlugin())), ServerConfig(unixSocket = path.toString()))
+        GlobalScope.launch { server.go() }
+        try {
+            // Сокет привязывается при создании сервера, подключаться можно сразу
+            val channel = SocketChannel.open(UnixDomainSocketAddress.of(path))
+            channel.use {
+                val command = Base64.getEncoder().encode(Json.encodeToString(Command("1", "Name", "data")).toByteArray())
+                channel.write(ByteBuffer.wrap(command + '$'.code.toByte()))
+
+                val response = StringBuilder()
+                val buffer = ByteBuffer.allocate(1)
+                while (channel.read(buffer.clear()) > 0 && buffer.get(0) != '$'.code.toByte())
+                    response.append(buffer.get(0).toInt().toChar())
+
+                val decoded = Json.decodeFromString<Response>(String(Base64.getDecoder().decode(response.toString()), StandardCharsets.UTF_8))
+                assertEquals("1", decoded.reqId)
+                assertEquals(SUCCESS, decoded.type)
+            }
+        } finally {
+            server.stop()
+        }
+        assertFalse(Files.exists(path))
+    }
+}
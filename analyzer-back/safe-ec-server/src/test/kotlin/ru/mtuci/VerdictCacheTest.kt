@@ -0,0 +1,79 @@
+package ru.mtuci
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.OID
+import ru.mtuci.plugins.Result
+
+class VerdictCacheTest {
+    private var now = 0L
+    private val plan = ExecutionPlan.of(listOf(TestPlugin()))
+
+    @Test
+    fun testHitAndMiss() {
+        val cache = VerdictCache(10, 1000) { now }
+        val key = Curves.canonicalize(Named("prime256v1")).key
+
+        assertNull(cache.get(key, plan))
+        cache.put(key, plan, Result.Validated())
+        assertNotNull(cache.get(Curves.canonicalize(OID("1.2.840.10045.3.1.7")).key, plan))
+        assertNull(cache.get(Curves.canonicalize(Named("secp256k1")).key, plan))
+
+        val stats = cache.stats
+        assertEquals(1L, stats.hits)
+        assertEquals(2L, stats.misses)
+        assertEquals(1, stats.size)
+    }
+
+    @Test
+    fun testLruEviction() {
+        val cache = VerdictCache(2, 1000) { now }
+        cache.get("a", plan)
+        cache.put("a", plan, Result.Validated())
+        cache.put("b", plan, Result.Validated())
+        cache.get("a", plan)
+        cache.put("c", plan, Result.Validated())
+
+        assertNotNull(cache.get("a", plan))
+        assertNull(cache.get("b", plan))
+        assertEquals(1L, cache.stats.evictions)
+    }
+
+    @Test
+    fun testTtl() {
+        val cache = VerdictCache(10, 1000) { now }
+        cache.get("a", plan)
+        cache.put("a", plan, Result.Validated())
+        now = 999
+        assertNotNull(cache.get("a", plan))
+        now = 1000
+        assertNull(cache.get("a", plan))
+    }
+
+    @Test
+    fun testFlushedOnPlanChange() {
+        val cache = VerdictCache(10, 1000) { now }
+        cache.get("a", plan)
+        cache.put("a", plan, Result.Validated())
+
+        val newPlan = ExecutionPlan.of(listOf(TestPlugin(), TestPlugin()))
+        assertNull(cache.get("a", newPlan))
+        assertEquals(1L, cache.stats.flushes)
+
+        // Результат, посчитанный по старому плану, не сохраняется
+        cache.put("a", plan, Result.Validated())
+        assertNull(cache.get("a", newPlan))
+    }
+
+    @Test
+    fun testTechErrorNotCached() {
+        val cache = VerdictCache(10, 1000) { now }
+        cache.get("a", plan)
+        cache.put("a", plan, Result.TechError("error"))
+        assertNull(cache.get("a", plan))
+    }
+}
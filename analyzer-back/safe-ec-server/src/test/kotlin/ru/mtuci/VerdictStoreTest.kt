@@ -0,0 +1,109 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.Result
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+class VerdictStoreTest {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val file = Files.createTempDirectory("safe-ec").resolve("verdicts.log")
+
+    @Test
+    fun testSurvivesRestart() {
+        open("plugins-1").apply {
+            put("c:1", "plugins-1", Result.Validated())
+            put("c:2", "plugins-1", Result.Vulnerable("RULE", "bad"))
+            put("c:3", "plugins-1", Result.TechError("not stored"))
+            close()
+        }
+
+        val store = open("plugins-1")
+        assertEquals(Result.Validated(), store.get("c:1", "plugins-1"))
+        assertEquals(Result.Vulnerable("RULE", "bad"), store.get("c:2", "plugins-1"))
+        assertNull(store.get("c:3", "plugins-1"))
+        store.close()
+    }
+
+    @Test
+    fun testOtherPluginsDiscarded() {
+        open("plugins-1").apply {
+            put("c:1", "plugins-1", Result.Validated())
+            close()
+        }
+
+        val store = open("plugins-2")
+        assertNull(store.get("c:1", "plugins-1"))
+        assertNull(store.get("c:1", "plugins-2"))
+        store.close()
+    }
+
+    @Test
+    fun testBrokenTailTruncated() {
+        open("plugins-1").apply {
+            put("c:1", "plugins-1", Result.Validated())
+            close()
+        }
+        val size = Files.size(file)
+        // Сервер упал посреди записи
+        Files.write(file, byteArrayOf(0, 0, 0, 100, 1, 2, 3), StandardOpenOption.APPEND)
+
+        val store = open("plugins-1")
+        assertEquals(Result.Validated(), store.get("c:1", "plugins-1"))
+        assertEquals(size, Files.size(file))
+        store.put("c:2", "plugins-1", Result.Undefined())
+        store.close()
+
+        val reopened = open("plugins-1")
+        assertEquals(Result.Undefined(), reopened.get("c:2", "plugins-1"))
+        reopened.close()
+    }
+
+    @Test
+    fun testCompaction() {
+        open("plugins-1").apply {
+            repeat(3000) { put("c:${it % 10}", "plugins-1", Result.Validated()) }
+            close()
+        }
+        val store = open("plugins-1")
+        store.compact()
+        // Записи по 25 байт, живых из них 10
+        assertEquals(250, Files.size(file))
+        store.put("c:10", "plugins-1", Result.Validated())
+        store.close()
+
+        val reopened = open("plugins-1")
+        assertEquals(11, reopened.size)
+        reopened.close()
+    }
+
+    @Test
+    fun testOnlyCurveKeysStored() {
+        open("plugins-1").apply {
+            put("n:unknown", "plugins-1", Result.Undefined())
+            put("o:1.2.3", "plugins-1", Result.Undefined())
+            put("s:${"1".repeat(70_000)}:2", "plugins-1", Result.Validated())
+            put("c:1", "plugins-1", Result.Validated())
+            close()
+        }
+
+        val store = open("plugins-1")
+        assertEquals(1, store.size)
+        assertEquals(Result.Validated(), store.get("c:1", "plugins-1"))
+        store.close()
+    }
+
+    @AfterEach
+    fun stop() {
+        scope.cancel()
+    }
+
+    private fun open(fingerprint: String) = VerdictStore(file, { fingerprint }, scope).apply { awaitLoaded() }
+}
@@ -0,0 +1,153 @@
+package ru.mtuci
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.mtuci.plugins.ExecutionPlan
+import ru.mtuci.plugins.Plugin
+import ru.mtuci.plugins.Priority
+import ru.mtuci.plugins.Request.Named
+import ru.mtuci.plugins.Request.Params
+import ru.mtuci.plugins.Request.Params.Supplementary
+import ru.mtuci.plugins.Result
+import ru.mtuci.worker.Worker
+import ru.mtuci.worker.WorkerPool
+import ru.mtuci.worker.WorkerProtocol
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.math.BigInteger
+import java.security.spec.ECFieldFp
+import java.security.spec.ECParameterSpec
+import java.security.spec.ECPoint
+import java.security.spec.EllipticCurve
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+const val WORKER_PORT = 8009
+
+class WorkerTest {
+    class SlowPlugin : Plugin {
+        val calls = AtomicInteger()
+
+        override fun priority() = Priority.LOW
+        override fun name() = "Slow plugin"
+        override fun check(named: Named): Result {
+            calls.incrementAndGet()
+            return Result.validated("SLOW", "Found by slow plugin")
+        }
+    }
+
+    @Test
+    fun testTaskRoundTrip() {
+        val spec = ECParameterSpec(EllipticCurve(ECFieldFp(BigInteger.valueOf(23)), BigInteger.ONE, BigInteger.ONE, byteArrayOf(1, 2)),
+            ECPoint(BigInteger.valueOf(3), BigInteger.TEN), BigInteger.valueOf(7), 1)
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use {
+            WorkerProtocol.writeTask(it, WorkerProtocol.Task(5, "plugins", Params(spec, Supplementary(null, listOf(BigInteger.TWO))), "42"))
+            WorkerProtocol.writeResult(it, 5, Outcome(Result.Vulnerable(null, "message")))
+            WorkerProtocol.writeResult(it, 6, Outcome(Result.Undefined(), false))
+            WorkerProtocol.writeResult(it, 7, null)
+        }
+
+        val input = DataInputStream(bytes.toByteArray().inputStream())
+        val task = WorkerProtocol.readMessage(input) as WorkerProtocol.Task
+        assertEquals(5, task.id)
+        assertEquals("plugins", task.fingerprint)
+        assertEquals("42", task.requestId)
+        val params = (task.request as Params)
+        assertEquals(spec.curve, params.params.curve)
+        assertArrayEquals(byteArrayOf(1, 2), params.params.curve.seed)
+        assertEquals(spec.generator, params.params.generator)
+        assertEquals(spec.order, params.params.order)
+        assertNull(params.supplementary.embeddingDegree)
+        assertEquals(listOf(BigInteger.TWO), params.supplementary.edFactors)
+
+        val (id, outcome) = WorkerProtocol.readResult(input)
+        assertEquals(5L, id)
+        assertEquals(Result.Vulnerable(null, "message"), outcome?.result)
+        assertTrue(outcome!!.complete)
+        val (_, incomplete) = WorkerProtocol.readResult(input)
+        assertEquals(Result.Undefined(), incomplete?.result)
+        assertFalse(incomplete!!.complete)
+        assertEquals(7L to null, WorkerProtocol.readResult(input))
+    }
+
+    @Test
+    fun testLowTierRunsInWorker() {
+        val plugin = SlowPlugin()
+        val worker = Worker(WORKER_PORT, TestPlugins(listOf(plugin)))
+        val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+        scope.launch { worker.go() }
+        val pool = WorkerPool(listOf("localhost:$WORKER_PORT"), scope)
+        try {
+            val plan = ExecutionPlan.of(listOf(SlowPlugin()))
+            val result = runBlocking { pool.run(Named("curve"), plan) }
+            assertEquals(Result.Vulnerable("SLOW", "Found by slow plugin"), result?.result)
+            assertEquals(1, plugin.calls.get())
+
+            // У вычислителя другой набор плагинов - задачу выполняет сервер
+            val other = ExecutionPlan.of(listOf(SlowPlugin(), TestPlugin()))
+            assertNull(runBlocking { pool.run(Named("curve"), other) })
+            assertEquals(1, plugin.calls.get())
+        } finally {
+            pool.stop()
+            worker.stop()
+            scope.cancel()
+        }
+    }
+
+    @Test
+    fun testCancelledOnWorker() {
+        val interrupted = CountDownLatch(1)
+        val blocking = object : Plugin {
+            override fun priority() = Priority.LOW
+            override fun name() = "Blocking plugin"
+            override fun check(named: Named): Result {
+                try {
+                    Thread.sleep(10_000)
+                } catch (e: InterruptedException) {
+                    interrupted.countDown()
+                }
+                return Result.Validated()
+            }
+        }
+        val plugins = TestPlugins(listOf(blocking))
+        val worker = Worker(WORKER_PORT, plugins)
+        val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+        scope.launch { worker.go() }
+        val pool = WorkerPool(listOf("localhost:$WORKER_PORT"), scope)
+        try {
+            // Клиент перестал ждать - вычислитель прерывает плагин, а не досчитывает его
+            assertNull(runBlocking { withTimeoutOrNull(300) { pool.run(Named("curve"), plugins.plan) } })
+            assertTrue(interrupted.await(2, TimeUnit.SECONDS))
+        } finally {
+            pool.stop()
+            worker.stop()
+            scope.cancel()
+        }
+    }
+
+    @Test
+    fun testWorkerUnavailable() {
+        val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+        val pool = WorkerPool(listOf("localhost:$WORKER_PORT"), scope)
+        try {
+            assertNull(runBlocking { pool.run(Named("curve"), ExecutionPlan.of(listOf(SlowPlugin()))) })
+        } finally {
+            pool.stop()
+            scope.cancel()
+        }
+    }
+}
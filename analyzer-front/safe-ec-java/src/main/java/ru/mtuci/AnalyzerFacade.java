@@ -25,7 +25,10 @@ public class AnalyzerFacade
 
         var safeEcClientConfig = Config.INSTANCE.getSafeEcClientConfig();
         Analyzer analyzer = AnalyzerFactoryResolver.resolveFactory().getImpl(path);
-        SafeEcClient.withClient(analyzer::analyze, (String) safeEcClientConfig.get("host"), (Integer) safeEcClientConfig.get("port"));
+        SafeEcClient.withClient(() -> {
+            analyzer.run();
+            report.profiles(SafeEcClient.getInstance().getProfiles());
+        }, (String) safeEcClientConfig.get("host"), (Integer) safeEcClientConfig.get("port"));
         analyzer.getErrors().forEach(report::add);
         return report;
     }
@@ -0,0 +1,62 @@
+package ru.mtuci;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * События Java Flight Recorder сканера. id запроса в событиях совпадает с id, под которым запрос уходит на сервер,
+ * поэтому события клиента связываются с событиями сервера и плагинов (ru.mtuci.plugins.Events) той же проверки.
+ */
+public final class Events
+{
+    private static final String CATEGORY = "SafeEC";
+
+    private Events()
+    {
+    }
+
+    /**
+     * Передача запроса клиенту: запись в сокет или, внутри пакета, постановка в пакет
+     */
+    @Name("ru.mtuci.client.Send")
+    @Label("Send")
+    @Category({CATEGORY, "Client"})
+    public static class Send extends Event
+    {
+        @Label("Request Id")
+        public String requestId;
+        @Label("Type")
+        public String type;
+    }
+
+    /**
+     * Ожидание ответа: от отправки запроса до окончательного ответа, включая повторы после BUSY
+     */
+    @Name("ru.mtuci.client.Receive")
+    @Label("Receive")
+    @Category({CATEGORY, "Client"})
+    public static class Receive extends Event
+    {
+        @Label("Request Id")
+        public String requestId;
+        @Label("Response Type")
+        public String type;
+        @Label("Retries")
+        public int retries;
+    }
+
+    @Name("ru.mtuci.client.Analyze")
+    @Label("Analyze")
+    @Category({CATEGORY, "Client"})
+    public static class Analyze extends Event
+    {
+        @Label("Analyzer")
+        public String analyzer;
+        @Label("Path")
+        public String path;
+        @Label("Errors")
+        public int errors;
+    }
+}
@@ -11,6 +11,7 @@ import com.contrastsecurity.sarif.ToolComponent;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import ru.mtuci.base.AnalysisFailure;
+import ru.mtuci.net.Profiles;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -32,6 +33,7 @@ public class Report
 
     private final List<AnalysisFailure> rows = new ArrayList<>();
     private final Path path;
+    private Profiles profiles;
 
     public Report add(AnalysisFailure failure)
     {
@@ -41,6 +43,15 @@ public class Report
         return this;
     }
 
+    /**
+     * Сводка профилей проверок на сервере, попадает в отчет, если клиент запрашивал профили
+     */
+    public Report profiles(Profiles profiles)
+    {
+        this.profiles = profiles;
+        return this;
+    }
+
     public boolean isOk()
     {
         return rows.isEmpty();
@@ -126,6 +137,12 @@ public class Report
             joiner.add(DELIMITER);
         }
 
+        if (profiles != null && !profiles.isEmpty())
+        {
+            joiner.add(profiles.toString());
+            joiner.add(DELIMITER);
+        }
+
         var versionInfo = VersionInfo.getInstance();
         joiner.add("Status: %s".formatted(isOk() ? "OK" : "FAILED"));
         joiner.add(DELIMITER);
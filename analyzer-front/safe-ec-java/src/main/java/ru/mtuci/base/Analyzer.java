@@ -2,6 +2,7 @@ package ru.mtuci.base;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import ru.mtuci.Events;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -32,6 +33,31 @@ public abstract class Analyzer
 
     public abstract void analyze();
 
+    /**
+     * {@link #analyze()}, записанный событием JFR {@link Events.Analyze}. Вложенные анализаторы (файлы каталога,
+     * содержимое jar) запускаются так же и дают вложенные события
+     */
+    public final void run()
+    {
+        var event = new Events.Analyze();
+        event.begin();
+        try
+        {
+            analyze();
+        }
+        finally
+        {
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.analyzer = getClass().getSimpleName();
+                event.path = path == null ? null : path.toString();
+                event.errors = errors.size();
+                event.commit();
+            }
+        }
+    }
+
     public List<AnalysisFailure> getErrors()
     {
         return Collections.unmodifiableList(errors);
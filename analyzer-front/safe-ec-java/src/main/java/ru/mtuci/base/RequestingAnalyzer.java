@@ -36,14 +36,15 @@ public abstract class RequestingAnalyzer extends Analyzer
     {
         try
         {
-            List<RequestDto> requests = makeRequests();
+            // Запросы файла уходят на сервер пакетом, ответы ждем после отправки всех
+            List<RequestDto> requests = SafeEcClient.getInstance().batch(this::makeRequests);
             for (RequestDto request : requests)
             {
                 Response response = request.response().get(60, TimeUnit.SECONDS);
                 var failure = switch (response.type())
                 {
                     case SUCCESS -> null;
-                    case ERROR ->
+                    case ERROR, BUSY ->
                             addError(null, "EC check request failed: reqId={}, info='{}'", response.reqId(), response.info());
                     case VULNERABLE -> addError(response.rule(), response.info());
                 };
@@ -23,7 +23,7 @@ public class AnalysingVisitor extends SimpleFileVisitor<Path>
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
     {
         Analyzer analyzer = AnalyzerFactoryResolver.resolveFactory().getImpl(file);
-        analyzer.analyze();
+        analyzer.run();
         this.errors.addAll(analyzer.getErrors());
         return FileVisitResult.CONTINUE;
     }
@@ -53,7 +53,7 @@ public class JarAnalyzer extends Analyzer
         {
             unpacked = unpack();
             var impl = AnalyzerFactoryResolver.resolveFactory().getImpl(unpacked);
-            impl.analyze();
+            impl.run();
             addErrors(impl.getErrors());
         }
         finally
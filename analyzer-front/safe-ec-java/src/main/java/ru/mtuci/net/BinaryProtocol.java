@@ -0,0 +1,197 @@
+package ru.mtuci.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Протокол v2: кадры вида [int32 длина][тело] без JSON и Base64.
+ * Формат описан на стороне сервера в Protocol.kt, здесь он должен совпадать байт в байт.
+ */
+final class BinaryProtocol
+{
+    static final String VERSION = "2";
+
+    private static final byte OP_CHECK = 1;
+    private static final byte OP_BATCH = 2;
+    private static final int OP_TIMEOUT_FLAG = 0x80;
+    private static final int OP_PROGRESSIVE_FLAG = 0x40;
+    private static final int OP_BULK_FLAG = 0x20;
+    private static final int OP_PROFILE_FLAG = 0x10;
+    private static final int RESPONSE_PROVISIONAL_FLAG = 0x80;
+    private static final int RESPONSE_PROFILE_FLAG = 0x40;
+
+    private static final byte KIND_OID = 0;
+    private static final byte KIND_NAME = 1;
+    private static final byte KIND_PARAMS = 2;
+
+    private static final byte FIELD_PRIME = 0;
+
+    private static final byte FLAG_SEED = 1;
+
+    private static final Response.Type[] RESPONSE_TYPES = Response.Type.values();
+
+    private BinaryProtocol()
+    {
+    }
+
+    /**
+     * Кадр запроса вместе с префиксом длины, готовый к отправке одним вызовом write
+     */
+    static byte[] encode(Request request, int timeoutMillis, boolean progressive, boolean bulk, boolean profile)
+    {
+        long id = Long.parseLong(request.id());
+        byte[] body = body(request);
+
+        int size = header(timeoutMillis) + 8 + body.length;
+        var buffer = ByteBuffer.allocate(4 + size).putInt(size);
+        putHeader(buffer, OP_CHECK, timeoutMillis, progressive, bulk, profile);
+        return buffer
+                .putLong(id)
+                .put(body)
+                .array();
+    }
+
+    /**
+     * Пакет проверок одним кадром. Сервер отвечает на каждую проверку отдельно, id пакета в ответах не встречается.
+     */
+    static byte[] encodeBatch(String batchId, List<Request> requests, int timeoutMillis, boolean progressive, boolean bulk, boolean profile)
+    {
+        byte[][] bodies = new byte[requests.size()][];
+        int size = header(timeoutMillis) + 8 + 4;
+        for (int i = 0; i < bodies.length; i++)
+        {
+            bodies[i] = body(requests.get(i));
+            size += 8 + bodies[i].length;
+        }
+
+        var buffer = ByteBuffer.allocate(4 + size).putInt(size);
+        putHeader(buffer, OP_BATCH, timeoutMillis, progressive, bulk, profile);
+        buffer.putLong(Long.parseLong(batchId))
+                .putInt(requests.size());
+        for (int i = 0; i < bodies.length; i++)
+        {
+            buffer.putLong(Long.parseLong(requests.get(i).id()));
+            buffer.put(bodies[i]);
+        }
+
+        return buffer.array();
+    }
+
+    static Response decode(DataInputStream in) throws IOException
+    {
+        int size = in.readInt();
+        byte[] frame = new byte[size];
+        in.readFully(frame);
+
+        var buffer = ByteBuffer.wrap(frame);
+        long id = buffer.getLong();
+        int type = buffer.get() & 0xFF;
+        String rule = getString(buffer);
+        String info = getString(buffer);
+        boolean provisional = (type & RESPONSE_PROVISIONAL_FLAG) != 0;
+        String profile = (type & RESPONSE_PROFILE_FLAG) != 0 ? getString(buffer) : null;
+        return new Response(id == -1 ? null : String.valueOf(id), RESPONSE_TYPES[type & ~(RESPONSE_PROVISIONAL_FLAG | RESPONSE_PROFILE_FLAG)], rule, info, provisional, profile);
+    }
+
+    /**
+     * Операция, а при заданном дедлайне - операция со старшим битом и int32 миллисекунд
+     */
+    private static int header(int timeoutMillis)
+    {
+        return timeoutMillis > 0 ? 1 + 4 : 1;
+    }
+
+    private static void putHeader(ByteBuffer buffer, byte op, int timeoutMillis, boolean progressive, boolean bulk, boolean profile)
+    {
+        if (progressive)
+            op |= OP_PROGRESSIVE_FLAG;
+        if (bulk)
+            op |= OP_BULK_FLAG;
+        if (profile)
+            op |= OP_PROFILE_FLAG;
+        if (timeoutMillis > 0)
+            buffer.put((byte) (op | OP_TIMEOUT_FLAG)).putInt(timeoutMillis);
+        else
+            buffer.put(op);
+    }
+
+    private static byte[] body(Request request)
+    {
+        return switch (request.type())
+        {
+            case OID -> string(KIND_OID, request.value());
+            case Name -> string(KIND_NAME, request.value());
+            case Params -> params(request.params());
+        };
+    }
+
+    private static byte[] string(byte kind, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 4 + bytes.length)
+                .put(kind)
+                .putInt(bytes.length)
+                .put(bytes)
+                .array();
+    }
+
+    private static byte[] params(Request.Params params)
+    {
+        if (params == null)
+            throw new IllegalArgumentException("Curve parameters are required");
+        if (!"prime".equals(params.type()))
+            throw new IllegalArgumentException("Unsupported curve type " + params.type());
+
+        byte[][] numbers = {
+                params.fp().toByteArray(),
+                params.a().toByteArray(),
+                params.b().toByteArray(),
+                params.x().toByteArray(),
+                params.y().toByteArray(),
+                params.n().toByteArray()
+        };
+        byte[] seed = params.seed() == null || params.seed().isEmpty() ? null : HexFormat.of().parseHex(params.seed());
+
+        int size = 1 + 1 + 4 + 1;
+        for (byte[] number : numbers)
+            size += 2 + number.length;
+        if (seed != null)
+            size += 2 + seed.length;
+
+        var buffer = ByteBuffer.allocate(size)
+                .put(KIND_PARAMS)
+                .put(FIELD_PRIME);
+        for (byte[] number : numbers)
+            putBytes(buffer, number);
+        buffer.putInt(params.h().intValueExact());
+        buffer.put(seed == null ? 0 : FLAG_SEED);
+        if (seed != null)
+            putBytes(buffer, seed);
+
+        return buffer.array();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes)
+    {
+        if (bytes.length > 0xFFFF)
+            throw new IllegalArgumentException("Value is too long: " + bytes.length + " bytes");
+
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+
+        var value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
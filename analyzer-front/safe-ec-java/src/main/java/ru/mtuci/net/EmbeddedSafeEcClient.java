@@ -0,0 +1,51 @@
+package ru.mtuci.net;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.mtuci.Embedded;
+
+import java.util.concurrent.Future;
+
+/**
+ * Клиент встроенного режима (safe-ec-client.embedded): плагины загружаются из указанного каталога и проверяют
+ * запросы в этом же процессе, сервер и сеть не нужны. Ответы такие же, как у сервера с тем же набором плагинов.
+ */
+@Slf4j
+public class EmbeddedSafeEcClient extends SafeEcClient
+{
+    private final String pluginsDir;
+    private volatile Embedded embedded;
+
+    protected EmbeddedSafeEcClient(String pluginsDir)
+    {
+        super(null, null);
+        this.pluginsDir = pluginsDir;
+    }
+
+    @Override
+    public synchronized void open()
+    {
+        if (embedded == null)
+        {
+            log.info("Using embedded SafeEC checker with plugins from {}", pluginsDir);
+            embedded = new Embedded(pluginsDir);
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (embedded != null)
+        {
+            embedded.close();
+            embedded = null;
+        }
+        log.info("Embedded SafeEC checker stopped");
+    }
+
+    @Override
+    public Future<Response> send(Request request)
+    {
+        return embedded.check(request.id(), request.type().name(), request.value())
+                .thenApply(response -> new Response(response.getReqId(), Response.Type.valueOf(response.getType()), response.getRule(), response.getInfo()));
+    }
+}
@@ -0,0 +1,83 @@
+package ru.mtuci.net;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.mtuci.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+
+/**
+ * Сводка профилей, которые сервер возвращает с ответами при safe-ec-client.profile: по каждому шагу проверки -
+ * сколько раз он встретился, суммарное, среднее и максимальное время, и сколько раз встретилось каждое пояснение
+ * (попадание в кэш, результат плагина и т.п.)
+ */
+@Slf4j
+public class Profiles
+{
+    private static class Step
+    {
+        private long count;
+        private long totalMicros;
+        private long maxMicros;
+        private final Map<String, Long> details = new TreeMap<>();
+    }
+
+    private final Map<String, Step> steps = new TreeMap<>();
+    private long requests;
+
+    /**
+     * Профиль одного ответа: JSON-массив шагов {"name", "us", "detail"}
+     */
+    public synchronized void add(String profile)
+    {
+        List<Map<String, Object>> entries;
+        try
+        {
+            entries = Utils.fromJson(profile.getBytes(StandardCharsets.UTF_8), List.class, Map.class);
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot parse profile '{}'", profile, e);
+            return;
+        }
+
+        requests++;
+        for (Map<String, Object> entry : entries)
+        {
+            var step = steps.computeIfAbsent(String.valueOf(entry.get("name")), name -> new Step());
+            long micros = entry.get("us") instanceof Number number ? number.longValue() : 0;
+            step.count++;
+            step.totalMicros += micros;
+            step.maxMicros = Math.max(step.maxMicros, micros);
+            if (entry.get("detail") != null)
+                step.details.merge(String.valueOf(entry.get("detail")), 1L, Long::sum);
+        }
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return requests == 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        var joiner = new StringJoiner(System.lineSeparator());
+        joiner.add("Server profile of %d requests:".formatted(requests));
+        steps.forEach((name, step) -> {
+            var line = "- %s: %d times, total %.3f ms, mean %.3f ms, max %.3f ms"
+                    .formatted(name, step.count, step.totalMicros / 1000.0, step.totalMicros / 1000.0 / step.count, step.maxMicros / 1000.0);
+            if (!step.details.isEmpty())
+            {
+                var details = new StringJoiner(", ", " (", ")");
+                step.details.forEach((detail, count) -> details.add(detail + ": " + count));
+                line += details;
+            }
+            joiner.add(line);
+        });
+        return joiner.toString();
+    }
+}
@@ -2,6 +2,7 @@ package ru.mtuci.net;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import io.churchkey.shade.util.Hex;
 import lombok.SneakyThrows;
@@ -16,8 +17,13 @@ import java.util.concurrent.atomic.AtomicLong;
 
 @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
 @JsonSerialize
-public record Request(String id, Type type, String value) {
+public record Request(String id, Type type, String value, @JsonIgnore Params params) {
     public enum Type { OID, Name, Params }
+
+    public Request(String id, Type type, String value)
+    {
+        this(id, type, value, null);
+    }
     
     private static final AtomicLong counter = new AtomicLong(1);
 
@@ -26,6 +32,14 @@ public record Request(String id, Type type, String value) {
         counter.set(1);
     }
 
+    /**
+     * Следующий свободный id, общий для запросов и пакетов
+     */
+    public static String nextId()
+    {
+        return String.valueOf(counter.getAndIncrement());
+    }
+
     @SneakyThrows
     public static Request of(Type type, Object data) {
         String value;
@@ -33,8 +47,10 @@ public record Request(String id, Type type, String value) {
             value = s;
         else 
             value = Utils.toJson(data);
-        
-        return new Request(String.valueOf(counter.getAndIncrement()), type, value);
+
+        // Параметры сохраняются как есть, чтобы в протоколе v2 не разбирать JSON обратно
+        Params params = data instanceof Params p ? p : null;
+        return new Request(nextId(), type, value, params);
     }
     
     public record Params(String type,
@@ -5,8 +5,24 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
 @JsonDeserialize
-public record Response(String reqId, Type type, String rule, String info)
+public record Response(String reqId, Type type, String rule, String info, boolean provisional, String profile)
 {
+    public Response(String reqId, Type type, String rule, String info)
+    {
+        this(reqId, type, rule, info, false);
+    }
+
+    public Response(String reqId, Type type, String rule, String info, boolean provisional)
+    {
+        this(reqId, type, rule, info, provisional, null);
+    }
+
     public enum Type
-    {SUCCESS, ERROR, VULNERABLE}
+    {
+        SUCCESS, ERROR, VULNERABLE,
+        /**
+         * Сервер перегружен, в info - через сколько миллисекунд повторить запрос
+         */
+        BUSY
+    }
 }
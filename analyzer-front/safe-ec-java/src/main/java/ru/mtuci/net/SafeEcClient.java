@@ -4,16 +4,28 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import ru.mtuci.Config;
+import ru.mtuci.Events;
 import ru.mtuci.Utils;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 @Slf4j
 public class SafeEcClient implements AutoCloseable
@@ -24,9 +36,18 @@ public class SafeEcClient implements AutoCloseable
     private static class ResponseFuture extends CompletableFuture<Response>
     {
         @Getter
-        private final String requestId;
+        private final Request request;
         private final Object monitor = new Object();
         private Response response;
+        /**
+         * От этого момента отсчитывается дедлайн запроса safe-ec-client.timeout, в том числе при повторах после BUSY
+         */
+        private final long createdAt = System.currentTimeMillis();
+        private int retries;
+        /**
+         * Событие JFR, начатое при отправке запроса и записанное с окончательным ответом
+         */
+        private final Events.Receive event = new Events.Receive();
 
         @Override
         public boolean cancel(boolean mayInterruptIfRunning)
@@ -45,50 +66,95 @@ public class SafeEcClient implements AutoCloseable
         {
             synchronized (monitor)
             {
-                return response != null;
+                return isFinal(response);
             }
         }
 
+        /**
+         * Ждет окончательный ответ: в прогрессивном режиме предварительный ответ пропускается
+         */
         @Override
         public Response get() throws InterruptedException
         {
             synchronized (monitor)
             {
-                while (response == null)
+                while (!isFinal(response))
                     monitor.wait();
-            }
 
-            return response;
+                return response;
+            }
         }
 
         @Override
         public Response get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
         {
-            long elapsedMillis = 0;
-            long totalTimeoutMillis = unit.toMillis(timeout);
-            long startTime = System.currentTimeMillis();
+            return await(timeout, unit, true);
+        }
+
+        /**
+         * Первый пришедший ответ, предварительный или окончательный
+         */
+        Response getProvisional(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+        {
+            return await(timeout, unit, false);
+        }
+
+        /**
+         * Срок ожидания отсчитывается от вызова и не продлевается повторами после BUSY
+         */
+        private Response await(long timeout, TimeUnit unit, boolean onlyFinal) throws InterruptedException, TimeoutException
+        {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
             synchronized (monitor)
             {
-                while (response == null && elapsedMillis < totalTimeoutMillis)
+                while (onlyFinal ? !isFinal(response) : response == null)
                 {
-                    long timeoutMillis = totalTimeoutMillis - elapsedMillis;
+                    long timeoutMillis = deadline - System.currentTimeMillis();
+                    if (timeoutMillis <= 0)
+                        throw new TimeoutException();
+
                     monitor.wait(timeoutMillis);
-                    elapsedMillis = System.currentTimeMillis() - startTime;
                 }
-            }
 
-            if (response == null)
-                throw new TimeoutException();
+                return response;
+            }
+        }
 
-            return response;
+        private static boolean isFinal(Response response)
+        {
+            return response != null && !response.provisional();
         }
 
-        void resolve(Response response)
+        /**
+         * В прогрессивном режиме вызывается дважды: предварительный ответ заменяется окончательным.
+         * Возвращает предыдущий ответ
+         */
+        Response resolve(Response response)
         {
             synchronized (monitor)
             {
+                Response previous = this.response;
                 this.response = response;
                 this.monitor.notifyAll();
+                if (!response.provisional() && event.shouldCommit())
+                {
+                    event.requestId = request.id();
+                    event.type = response.type().name();
+                    event.retries = retries;
+                    event.commit();
+                }
+                return previous;
+            }
+        }
+
+        /**
+         * Запрос будет отправлен повторно, возвращает номер повтора
+         */
+        int nextRetry()
+        {
+            synchronized (monitor)
+            {
+                return ++retries;
             }
         }
     }
@@ -124,10 +190,42 @@ public class SafeEcClient implements AutoCloseable
 
     protected static SafeEcClient newInstance(String host, Integer port)
     {
+        String embedded = embedded();
+        if (embedded != null)
+            return embeddedClient(embedded);
+
         return new SafeEcClient(host, port);
     }
 
+    /**
+     * Сервер в сборку сканера не входит, поэтому клиент встроенного режима загружается, только если он включен
+     * и safe-ec-server есть в classpath
+     */
+    private static SafeEcClient embeddedClient(String pluginsDir)
+    {
+        try
+        {
+            Class.forName("ru.mtuci.Embedded", false, SafeEcClient.class.getClassLoader());
+            return (SafeEcClient) Class.forName("ru.mtuci.net.EmbeddedSafeEcClient")
+                    .getDeclaredConstructor(String.class)
+                    .newInstance(pluginsDir);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IllegalStateException("Embedded mode requires safe-ec-server.jar on the classpath", e);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Cannot create embedded SafeEC client", e);
+        }
+    }
+
     private static final int DOLLAR_SIGN_BYTE = 36;
+    private static final int DEFAULT_BATCH_SIZE = 256;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 60_000;
+    private static final int MAX_RETRIES = 10;
+    private static final long MIN_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
 
     private final Lock readLock;
     private final Lock writeLock;
@@ -135,10 +233,48 @@ public class SafeEcClient implements AutoCloseable
     private final Map<String, ResponseFuture> pending = new WeakHashMap<>();
 
     private final String host;
-    private final int port;
+    private final Integer port;
 
-    private volatile Socket client;
+    /**
+     * TCP-сокет или {@link UnixSocket}, если в настройках задан safe-ec-client.unix-socket
+     */
+    private volatile Closeable client;
     private volatile Thread receiver;
+    private volatile ScheduledExecutorService retries;
+    private volatile DataInputStream input;
+    private volatile OutputStream output;
+    /**
+     * Сервер согласился на протокол v2, запросы и ответы идут в двоичном виде
+     */
+    private volatile boolean binary;
+    /**
+     * Запросы, накопленные потоком внутри {@link #batch(Supplier)}
+     */
+    private final ThreadLocal<List<Request>> batches = new ThreadLocal<>();
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    /**
+     * Дедлайн, который передается серверу с каждым запросом: дольше клиент ждать не будет, и сервер бросает
+     * проверку. 0 - без дедлайна
+     */
+    private volatile int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    /**
+     * safe-ec-client.progressive: сервер сразу отвечает по быстрым проверкам, а окончательный ответ присылает,
+     * когда досчитает медленные. Future разрешается окончательным ответом, предварительный можно получить
+     * через {@link #provisional(Future, long, TimeUnit)}. {@link ru.mtuci.base.RequestingAnalyzer} предварительных
+     * ответов не читает, сканеру режим ничего не дает
+     */
+    private volatile boolean progressive;
+    /**
+     * safe-ec-client.bulk: запросы помечаются как пакетные (сканирование большого репозитория), сервер пропускает
+     * вперед интерактивные запросы других клиентов
+     */
+    private volatile boolean bulk;
+    /**
+     * safe-ec-client.profile: сервер возвращает с каждым ответом профиль проверки, сводка по ним попадает в отчет
+     */
+    private volatile boolean profile;
+    @Getter
+    private final Profiles profiles = new Profiles();
 
     protected SafeEcClient(String host, Integer port)
     {
@@ -189,8 +325,37 @@ public class SafeEcClient implements AutoCloseable
         write(() -> {
             if (client == null)
             {
-                client = new Socket(host, port);
-                client.setSoTimeout(10_000);
+                String unixSocket = unixSocket();
+                if (unixSocket != null)
+                {
+                    var socket = new UnixSocket(unixSocket);
+                    client = socket;
+                    input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    output = socket.getOutputStream();
+                    log.info("Connected to SafeEC server via unix socket {}", unixSocket);
+                }
+                else
+                {
+                    var socket = new Socket(host, port);
+                    // Без таймаута чтения: ответ может идти дольше любого фиксированного срока (ожидание после BUSY,
+                    // медленные проверки), а сроки ожидания отсчитывает каждый запрос в своем future
+                    socket.setSoTimeout(0);
+                    client = socket;
+                    input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    output = socket.getOutputStream();
+                }
+                binary = false;
+                batchSize = batchSize();
+                timeoutMillis = timeoutMillis();
+                progressive = progressive();
+                bulk = bulk();
+                profile = profile();
+                negotiate();
+                retries = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "safe-ec-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
 
                 receiver = new Thread(() -> {
                     try
@@ -199,11 +364,16 @@ public class SafeEcClient implements AutoCloseable
                         {
                             Response response = receive();
                             log.info("Received from server: {}", response);
+                            // Предварительный ответ несет неполный профиль, в сводку идет профиль окончательного
+                            if (response.profile() != null && !response.provisional())
+                                profiles.add(response.profile());
                             ResponseFuture future = pending.get(response.reqId());
                             if (future == null)
                                 log.warn("Cannot find related request, response skipped");
+                            else if (response.type() == Response.Type.BUSY)
+                                retry(future, response);
                             else
-                                future.resolve(response);
+                                resolve(future, response);
                         }
                     }
                     catch (Exception e)
@@ -218,27 +388,316 @@ public class SafeEcClient implements AutoCloseable
         });
     }
 
+    /**
+     * Запрашивает протокол из настроек (safe-ec-client.protocol, по умолчанию 2). Ответ на Hello читается здесь же,
+     * до запуска потока чтения, и до него ничего больше не отправляется. Если сервер протокол не поддерживает,
+     * соединение остается на исходном JSON-формате.
+     */
+    private void negotiate() throws IOException
+    {
+        String protocol = protocol();
+        if (!BinaryProtocol.VERSION.equals(protocol))
+            return;
+
+        writeLegacy(Utils.toJson(Map.of("id", "0", "type", "Hello", "value", protocol)));
+        Response response = receiveLegacy(input);
+        if (response.type() == Response.Type.SUCCESS && protocol.equals(response.info()))
+        {
+            binary = true;
+            log.info("Using protocol v{}", protocol);
+        }
+        else
+        {
+            log.warn("Server does not support protocol v{}, fallback to JSON: {}", protocol, response.info());
+        }
+    }
+
+    private static String protocol()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object protocol = clientConfig == null ? null : clientConfig.get("protocol");
+        return protocol == null ? BinaryProtocol.VERSION : String.valueOf(protocol);
+    }
+
+    /**
+     * Каталог с jar-файлами плагинов для встроенного режима (safe-ec-client.embedded). Если задан, проверки
+     * выполняются в этом процессе без сервера
+     */
+    private static String embedded()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object embedded = clientConfig == null ? null : clientConfig.get("embedded");
+        return embedded == null ? null : String.valueOf(embedded);
+    }
+
+    /**
+     * Путь к Unix domain socket сервера (safe-ec-client.unix-socket). Если задан, host и port не используются
+     */
+    private static String unixSocket()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object unixSocket = clientConfig == null ? null : clientConfig.get("unix-socket");
+        return unixSocket == null ? null : String.valueOf(unixSocket);
+    }
+
+    private static int batchSize()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object batchSize = clientConfig == null ? null : clientConfig.get("batch-size");
+        return batchSize == null ? DEFAULT_BATCH_SIZE : Math.max(1, Integer.parseInt(String.valueOf(batchSize)));
+    }
+
+    private static boolean progressive()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object progressive = clientConfig == null ? null : clientConfig.get("progressive");
+        return progressive != null && Boolean.parseBoolean(String.valueOf(progressive));
+    }
+
+    private static boolean bulk()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object bulk = clientConfig == null ? null : clientConfig.get("bulk");
+        return bulk != null && Boolean.parseBoolean(String.valueOf(bulk));
+    }
+
+    private static boolean profile()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object profile = clientConfig == null ? null : clientConfig.get("profile");
+        return profile != null && Boolean.parseBoolean(String.valueOf(profile));
+    }
+
+    private static int timeoutMillis()
+    {
+        Map<String, Object> clientConfig = Config.INSTANCE.getSafeEcClientConfig();
+        Object timeout = clientConfig == null ? null : clientConfig.get("timeout");
+        return timeout == null ? DEFAULT_TIMEOUT_MILLIS : Math.max(0, Integer.parseInt(String.valueOf(timeout)));
+    }
+
+    /**
+     * Запросы, отправленные текущим потоком внутри action, уходят на сервер пакетами (команда Batch) при накоплении
+     * safe-ec-client.batch-size штук и по завершении action. Вложенные вызовы попадают во внешний пакет.
+     * Ожидать ответы на запросы нужно уже после выхода из метода, иначе они могут быть еще не отправлены.
+     */
+    public <T> T batch(Supplier<T> action)
+    {
+        if (batches.get() != null)
+            return action.get();
+
+        List<Request> batch = new ArrayList<>();
+        batches.set(batch);
+        try
+        {
+            return action.get();
+        }
+        finally
+        {
+            batches.remove();
+            read(() -> {
+                transmit(batch);
+                return null;
+            });
+        }
+    }
+
     public Future<Response> send(Request request)
     {
-        return read(() -> {
-            String jsonRequest = Utils.toJson(request);
-            log.info("Sending request: {}", jsonRequest);
+        var event = new Events.Send();
+        event.begin();
+        try
+        {
+            return enqueue(request);
+        }
+        finally
+        {
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.requestId = request.id();
+                event.type = request.type().name();
+                event.commit();
+            }
+        }
+    }
 
-            byte[] encoded = Base64.getEncoder().encode(jsonRequest.getBytes(StandardCharsets.UTF_8));
-            var out = client.getOutputStream();
-            out.write(encoded);
-            out.write(DOLLAR_SIGN_BYTE);
-            out.flush();
-            ResponseFuture future = new ResponseFuture(request.id());
+    private Future<Response> enqueue(Request request)
+    {
+        return read(() -> {
+            ResponseFuture future = new ResponseFuture(request);
+            future.event.begin();
             pending.put(request.id(), future);
+            List<Request> batch = batches.get();
+            if (batch == null)
+            {
+                transmit(List.of(request));
+            }
+            else
+            {
+                batch.add(request);
+                if (batch.size() >= batchSize)
+                {
+                    transmit(batch);
+                    batch.clear();
+                }
+            }
             return future;
         });
     }
 
+    /**
+     * Сервер не принял запрос из-за перегрузки. Запрос отправляется повторно не раньше, чем просил сервер,
+     * и с экспоненциально растущей паузой, чтобы клиенты не добивали перегруженный сервер повторами. Если повтор
+     * не успевает до дедлайна запроса, запрос сразу получает ERROR.
+     */
+    private void retry(ResponseFuture future, Response busy)
+    {
+        long hint = parseRetryAfter(busy.info());
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(future.retries, 16));
+        long delay = Math.max(hint, backoff);
+        delay += ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+        int retry = future.nextRetry();
+        Request request = future.getRequest();
+        if (retry > MAX_RETRIES)
+        {
+            future.resolve(new Response(request.id(), Response.Type.ERROR, null, "Server is busy, gave up after " + MAX_RETRIES + " retries"));
+            return;
+        }
+        if (timeoutMillis > 0 && System.currentTimeMillis() + delay > future.createdAt + timeoutMillis)
+        {
+            future.resolve(new Response(request.id(), Response.Type.ERROR, null, "Server is busy, retry in " + delay + " ms would miss the request deadline"));
+            return;
+        }
+
+        log.warn("Server is busy, request {} will be retried in {} ms (retry {})", request.id(), delay, retry);
+        retries.schedule(() -> {
+            try
+            {
+                read(() -> {
+                    if (client != null)
+                        transmit(List.of(request));
+                    return null;
+                });
+            }
+            catch (Exception e)
+            {
+                log.error("Cannot retry request {}", request.id(), e);
+                future.resolve(new Response(request.id(), Response.Type.ERROR, null, "Cannot retry request: " + e.getMessage()));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Первый ответ на запрос: в прогрессивном режиме - предварительный, если он пришел раньше окончательного.
+     * {@link Future#get()} же всегда ждет окончательный ответ
+     */
+    public static Response provisional(Future<Response> future, long timeout, TimeUnit unit) throws Exception
+    {
+        if (future instanceof ResponseFuture responseFuture)
+            return responseFuture.getProvisional(timeout, unit);
+
+        return future.get(timeout, unit);
+    }
+
+    private static void resolve(ResponseFuture future, Response response)
+    {
+        Response previous = future.resolve(response);
+        if (previous != null && previous.type() != response.type())
+            log.warn("Final verdict for request {} differs from provisional one: {} -> {}", response.reqId(), previous.type(), response.type());
+    }
+
+    private static long parseRetryAfter(String info)
+    {
+        try
+        {
+            return info == null ? MIN_BACKOFF_MILLIS : Long.parseLong(info.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return MIN_BACKOFF_MILLIS;
+        }
+    }
+
+    private void transmit(List<Request> requests) throws IOException
+    {
+        if (requests.isEmpty())
+            return;
+
+        if (requests.size() == 1)
+        {
+            Request request = requests.get(0);
+            if (binary)
+            {
+                log.info("Sending request: {} {}", request.id(), request.type());
+                writeFrame(BinaryProtocol.encode(request, timeoutMillis, progressive, bulk, profile));
+            }
+            else
+            {
+                var command = new LinkedHashMap<String, Object>();
+                command.put("id", request.id());
+                command.put("type", request.type());
+                command.put("value", request.value());
+                String jsonRequest = Utils.toJson(withOptions(command));
+                log.info("Sending request: {}", jsonRequest);
+                writeLegacy(jsonRequest);
+            }
+            return;
+        }
+
+        String batchId = Request.nextId();
+        log.info("Sending batch {} of {} requests", batchId, requests.size());
+        if (binary)
+            writeFrame(BinaryProtocol.encodeBatch(batchId, requests, timeoutMillis, progressive, bulk, profile));
+        else
+            writeLegacy(Utils.toJson(withOptions(Map.of("id", batchId, "type", "Batch", "items", requests))));
+    }
+
+    private Map<String, Object> withOptions(Map<String, ?> command)
+    {
+        var result = new LinkedHashMap<String, Object>(command);
+        if (timeoutMillis > 0)
+            result.put("timeout", timeoutMillis);
+        if (progressive)
+            result.put("progressive", true);
+        if (bulk)
+            result.put("bulk", true);
+        if (profile)
+            result.put("profile", true);
+        return result;
+    }
+
+    private void writeLegacy(String json) throws IOException
+    {
+        byte[] encoded = Base64.getEncoder().encode(json.getBytes(StandardCharsets.UTF_8));
+        byte[] frame = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, frame, 0, encoded.length);
+        frame[encoded.length] = DOLLAR_SIGN_BYTE;
+        writeFrame(frame);
+    }
+
+    private void writeFrame(byte[] frame) throws IOException
+    {
+        var out = output;
+        // Запросы отправляются из разных потоков, кадр должен уйти целиком
+        synchronized (out)
+        {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
     @SneakyThrows
     private Response receive()
     {
-        var inputStream = read(() -> client.getInputStream());
+        var inputStream = read(() -> input);
+        if (binary)
+            return BinaryProtocol.decode(inputStream);
+
+        return receiveLegacy(inputStream);
+    }
+
+    private static Response receiveLegacy(InputStream inputStream) throws IOException
+    {
         var stringBuilder = new StringBuilder();
         int next = inputStream.read();
         while (next != -1 && next != DOLLAR_SIGN_BYTE)
@@ -259,9 +718,16 @@ public class SafeEcClient implements AutoCloseable
             {
                 client.close();
                 client = null;
+                input = null;
+                output = null;
             }
             return null;
         });
+        if (retries != null)
+        {
+            retries.shutdownNow();
+            retries = null;
+        }
         log.info("Waiting for receiver thread");
         if (receiver != null)
         {
@@ -0,0 +1,86 @@
+package ru.mtuci.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Соединение с сервером через Unix domain socket, когда клиент и сервер работают на одной машине.
+ * Потоки читают и пишут в канал напрямую: потоки из {@link java.nio.channels.Channels} берут общий blockingLock,
+ * и поток чтения, ждущий ответ, блокировал бы отправку запросов
+ */
+final class UnixSocket implements Closeable
+{
+    private final SocketChannel channel;
+
+    UnixSocket(String path) throws IOException
+    {
+        this.channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+    }
+
+    InputStream getInputStream()
+    {
+        return new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                byte[] single = new byte[1];
+                int read = read(single, 0, 1);
+                return read == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException
+            {
+                if (length == 0)
+                    return 0;
+
+                return channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+    }
+
+    OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                var buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        try
+        {
+            return "UnixSocket[" + channel.getRemoteAddress() + "]";
+        }
+        catch (IOException e)
+        {
+            return "UnixSocket[closed]";
+        }
+    }
+}
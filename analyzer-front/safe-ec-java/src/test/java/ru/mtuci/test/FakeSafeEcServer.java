@@ -0,0 +1,105 @@
+package ru.mtuci.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.SneakyThrows;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Сервер для тестов клиента: принимает одно соединение, отклоняет протокол v2 и отвечает на JSON-запросы
+ * через handler. handler получает запрос и функцию отправки ответа и может ответить несколько раз
+ */
+public class FakeSafeEcServer implements AutoCloseable
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+
+    public FakeSafeEcServer(BiConsumer<Map<String, Object>, Consumer<Map<String, Object>>> handler) throws IOException
+    {
+        serverSocket = new ServerSocket(0);
+        thread = new Thread(() -> serve(handler), "fake-safe-ec-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public static Map<String, Object> response(Object reqId, String type, String info, boolean provisional)
+    {
+        var response = new LinkedHashMap<String, Object>();
+        response.put("reqId", reqId);
+        response.put("type", type);
+        response.put("info", info);
+        response.put("provisional", provisional);
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void serve(BiConsumer<Map<String, Object>, Consumer<Map<String, Object>>> handler)
+    {
+        try (Socket socket = serverSocket.accept())
+        {
+            var input = new BufferedInputStream(socket.getInputStream());
+            var output = socket.getOutputStream();
+            byte[] frame;
+            while ((frame = readFrame(input)) != null)
+            {
+                Map<String, Object> request = mapper.readValue(Base64.getDecoder().decode(frame), Map.class);
+                if ("Hello".equals(request.get("type")))
+                    write(output, response(request.get("id"), "ERROR", "Unsupported protocol", false));
+                else
+                    handler.accept(request, response -> write(output, response));
+            }
+        }
+        catch (IOException e)
+        {
+            // Клиент закрыл соединение
+        }
+    }
+
+    private static byte[] readFrame(InputStream input) throws IOException
+    {
+        var frame = new ByteArrayOutputStream();
+        int next;
+        while ((next = input.read()) != '$')
+        {
+            if (next == -1)
+                return null;
+            frame.write(next);
+        }
+        return frame.toByteArray();
+    }
+
+    @SneakyThrows
+    private static synchronized void write(OutputStream output, Map<String, Object> response)
+    {
+        byte[] json = mapper.writeValueAsString(response).getBytes(StandardCharsets.UTF_8);
+        output.write(Base64.getEncoder().encode(json));
+        output.write('$');
+        output.flush();
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        serverSocket.close();
+        thread.join(1000);
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mtuci.test;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.mtuci.net.Request;
+import ru.mtuci.net.Response;
+import ru.mtuci.net.SafeEcClient;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SafeEcClientTest
+{
+    @Test
+    @SneakyThrows
+    public void testWaitsForFinalResponse()
+    {
+        try (var server = new FakeSafeEcServer((request, respond) -> {
+            respond.accept(FakeSafeEcServer.response(request.get("id"), "SUCCESS", null, true));
+            sleep(500);
+            respond.accept(FakeSafeEcServer.response(request.get("id"), "VULNERABLE", "Weak curve", false));
+        }); var client = new SafeEcClient("localhost", server.getPort()) {})
+        {
+            client.open();
+            var future = client.send(Request.of(Request.Type.Name, "secp256r1"));
+
+            var provisional = SafeEcClient.provisional(future, 5, TimeUnit.SECONDS);
+            Assertions.assertEquals(Response.Type.SUCCESS, provisional.type());
+            Assertions.assertTrue(provisional.provisional());
+
+            var response = future.get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(Response.Type.VULNERABLE, response.type());
+            Assertions.assertFalse(response.provisional());
+            Assertions.assertTrue(future.isDone());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void testBusyKeepsCallerTimeout()
+    {
+        var attempts = new AtomicInteger();
+        try (var server = new FakeSafeEcServer((request, respond) -> {
+            if (attempts.incrementAndGet() == 1)
+                respond.accept(FakeSafeEcServer.response(request.get("id"), "BUSY", "2000", false));
+            else
+                respond.accept(FakeSafeEcServer.response(request.get("id"), "SUCCESS", null, false));
+        }); var client = new SafeEcClient("localhost", server.getPort()) {})
+        {
+            client.open();
+            var future = client.send(Request.of(Request.Type.Name, "secp256r1"));
+            // Пауза после BUSY не продлевает срок, который дал вызывающий
+            long started = System.nanoTime();
+            Assertions.assertThrows(TimeoutException.class, () -> future.get(500, TimeUnit.MILLISECONDS));
+            Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1500);
+
+            var response = future.get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(Response.Type.SUCCESS, response.type());
+            Assertions.assertEquals(2, attempts.get());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void testBusyBeyondDeadline()
+    {
+        var attempts = new AtomicInteger();
+        try (var server = new FakeSafeEcServer((request, respond) -> {
+            if (attempts.incrementAndGet() == 1)
+                respond.accept(FakeSafeEcServer.response(request.get("id"), "BUSY", "61000", false));
+            else
+                respond.accept(FakeSafeEcServer.response(request.get("id"), "SUCCESS", null, false));
+        }); var client = new SafeEcClient("localhost", server.getPort()) {})
+        {
+            client.open();
+            // Повтор через 61 с не успевает до дедлайна запроса в 60 с: ошибка сразу, без ожидания
+            var response = client.send(Request.of(Request.Type.Name, "secp256r1")).get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(Response.Type.ERROR, response.type());
+            Assertions.assertEquals(1, attempts.get());
+
+            // Поток чтения принимает ответы на новые запросы
+            response = client.send(Request.of(Request.Type.Name, "secp384r1")).get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(Response.Type.SUCCESS, response.type());
+        }
+    }
+
+    @SneakyThrows
+    private static void sleep(long millis)
+    {
+        Thread.sleep(millis);
+    }
+}